@@ -0,0 +1,165 @@
+/*
+ * DecodeBudget.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Process wide limit on the memory held by decoded images. Before an image
+ * is decoded, the size of its raster, known from the header, is reserved
+ * against the budget; a decode which does not fit waits until earlier ones
+ * have released theirs. Reservations are granted in the order they were
+ * asked for, so a large image is not starved by a stream of small ones.
+ * Images whose header claims more pixels than a hard limit are refused
+ * outright, they are either broken or decompression bombs.
+ *
+ * @author scott
+ */
+public final class DecodeBudget {
+
+  /** Bytes a decoded pixel takes, an int per pixel for RGB rasters. */
+  public static final int BYTES_PER_PIXEL = 4;
+  /** Default share of the maximum heap decoded images may use. */
+  private static final int D_HEAP_SHARE = 4;
+  /** Default largest number of pixels an image may claim. */
+  private static final long D_MAX_PIXELS = 200L * 1000 * 1000;
+  /** The single instance. */
+  private static final DecodeBudget INSTANCE = new DecodeBudget();
+
+  /** Waiting reservations in arrival order, guarded by this. */
+  private final Deque<Object> waiting = new ArrayDeque<Object>();
+  /** Bytes decoded images may use in total, guarded by this. */
+  private long capacity = Runtime.getRuntime().maxMemory() / D_HEAP_SHARE;
+  /** Largest number of pixels an image may claim, guarded by this. */
+  private long maxPixels = D_MAX_PIXELS;
+  /** Bytes reserved now, guarded by this. */
+  private long used = 0;
+
+  /** Use getInstance(). */
+  private DecodeBudget() {
+  }
+
+  /**
+   * Get the budget.
+   * @return the process wide budget
+   */
+  public static DecodeBudget getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Check the pixel count an image header claims.
+   * @param name the image name, for the message
+   * @param width the width from the header
+   * @param height the height from the header
+   * @throws IOException if the image is larger than the hard limit
+   */
+  public void check(final String name, final int width, final int height)
+    throws IOException {
+    if ((long) width * height > getMaxPixels()) {
+      throw new IOException("Refusing to decode " + name + ", " + width
+        + "x" + height + " is more than " + getMaxPixels() + " pixels");
+    }
+  }
+
+  /**
+   * Reserve memory for a decoded raster, waiting until it fits. A request
+   * larger than the whole budget waits until nothing else is reserved;
+   * callers should subsample so that it fits().
+   * @param bytes the size of the raster
+   * @return the bytes reserved, to be given to release()
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  public synchronized long acquire(final long bytes)
+    throws InterruptedIOException {
+    final Object ticket = new Object();
+    waiting.addLast(ticket);
+    try {
+      while (waiting.peekFirst() != ticket
+        || (used > 0 && used + bytes > capacity)) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      waiting.remove(ticket);
+      notifyAll();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting to decode");
+    }
+    waiting.removeFirst();
+    used += bytes;
+    notifyAll();
+    return bytes;
+  }
+
+  /**
+   * Give back a reservation.
+   * @param bytes the bytes returned by acquire()
+   */
+  public synchronized void release(final long bytes) {
+    if (bytes > 0) {
+      used -= bytes;
+      notifyAll();
+    }
+  }
+
+  /**
+   * @param bytes the size of a raster
+   * @return true if a raster of that size fits in the budget at all
+   */
+  public synchronized boolean fits(final long bytes) {
+    return bytes <= capacity;
+  }
+
+  /**
+   * @return the bytes reserved now
+   */
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * @return the bytes decoded images may use in total
+   */
+  public synchronized long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @param inCapacity the bytes decoded images may use in total
+   */
+  public synchronized void setCapacity(final long inCapacity) {
+    this.capacity = inCapacity;
+    notifyAll();
+  }
+
+  /**
+   * @return the largest number of pixels an image may claim
+   */
+  public synchronized long getMaxPixels() {
+    return maxPixels;
+  }
+
+  /**
+   * @param inMaxPixels the largest number of pixels an image may claim
+   */
+  public synchronized void setMaxPixels(final long inMaxPixels) {
+    this.maxPixels = inMaxPixels;
+  }
+}
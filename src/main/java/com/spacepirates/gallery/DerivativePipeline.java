@@ -0,0 +1,563 @@
+/*
+ * DerivativePipeline.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import com.drew.imaging.jpeg.JpegProcessingException;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifThumbnailDirectory;
+import com.spacepirates.swing.chooser.ImageNameFilter;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Makes the missing derivatives of one image with a single decode. The
+ * stages run from large to small: the original is decoded once, subsampled
+ * to what the preview needs, and scaled to the preview; the thumbnail is
+ * cut from the preview raster and the feed image from the thumbnail. When
+ * the preview is already on disk it is decoded instead of the original, so
+ * the original is only ever read to make a preview. With image rotation
+ * on, the EXIF orientation of the original is applied to the downscaled
+ * rasters, so derivatives are upright while the original is left alone.
+ *
+ * @author scott
+ */
+public class DerivativePipeline {
+
+  /**
+   * How many times larger than the raster made from it a subsampled decode
+   * is kept, so the scaler still has pixels to average for its final step.
+   */
+  private static final int SUBSAMPLE_MARGIN = 2;
+  /**
+   * How far the aspect ratio of an embedded EXIF thumbnail may be off from
+   * the original for it to be used.
+   */
+  private static final double EXIF_THUMBNAIL_ASPECT = 0.02;
+
+  /** The gallery, which supplies sizes, scalers and URLs. */
+  private final ImageGallery gallery;
+  /** Encoded derivatives not written yet, null to write them at once. */
+  private final Map<File, byte[]> deferred;
+  /** Bytes reserved in the decode budget by this run. */
+  private long reserved = 0;
+
+  /**
+   * Create a pipeline for a gallery which writes derivatives as they are
+   * made.
+   * @param inGallery the gallery
+   */
+  public DerivativePipeline(final ImageGallery inGallery) {
+    this(inGallery, false);
+  }
+
+  /**
+   * Create a pipeline for a gallery.
+   * @param inGallery the gallery
+   * @param deferWrites if true, derivatives are only encoded by run() and
+   * written by flush(), so the file system is not touched while the CPU
+   * work is done
+   */
+  public DerivativePipeline(final ImageGallery inGallery,
+    final boolean deferWrites) {
+    gallery = inGallery;
+    deferred = deferWrites ? new LinkedHashMap<File, byte[]>() : null;
+  }
+
+  /**
+   * Make the missing derivatives of an image. The dimensions of the original
+   * and of the derivatives made are set in the image infos.
+   * @param image the original
+   * @param previewInfo the preview, set to the original if that is small
+   * enough to be its own preview
+   * @param thumbInfo the thumbnail
+   * @param feedInfo the feed image
+   * @param missing the derivatives to make
+   * @throws IOException if an image can not be read or written
+   */
+  public void run(final ImageInfo image, final ImageInfo previewInfo,
+    final ImageInfo thumbInfo, final ImageInfo feedInfo,
+    final Set<DerivativeType> missing) throws IOException {
+    try {
+      make(image, previewInfo, thumbInfo, feedInfo, missing);
+    } finally {
+      DecodeBudget.getInstance().release(reserved);
+      reserved = 0;
+    }
+  }
+
+  /**
+   * Write the derivatives encoded by run() of a pipeline which defers its
+   * writes.
+   * @throws IOException if a derivative can not be written
+   */
+  public void flush() throws IOException {
+    if (deferred == null) {
+      return;
+    }
+    final Iterator<Map.Entry<File, byte[]>> it =
+      deferred.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<File, byte[]> entry = it.next();
+      FileUtils.writeAtomic(entry.getKey(), entry.getValue());
+      it.remove();
+    }
+  }
+
+  /**
+   * Make the missing derivatives of an image, see run().
+   * @param image the original
+   * @param previewInfo the preview
+   * @param thumbInfo the thumbnail
+   * @param feedInfo the feed image
+   * @param missing the derivatives to make
+   * @throws IOException if an image can not be read or written
+   */
+  private void make(final ImageInfo image, final ImageInfo previewInfo,
+    final ImageInfo thumbInfo, final ImageInfo feedInfo,
+    final Set<DerivativeType> missing) throws IOException {
+    final Set<DerivativeType> todo = EnumSet.noneOf(DerivativeType.class);
+    todo.addAll(missing);
+
+    final int orientation = gallery.getRotateImages()
+      ? image.getOrientation() : 1;
+
+    if (gallery.getExifThumbnails() && (todo.contains(DerivativeType.THUMBNAIL)
+      || todo.contains(DerivativeType.FEED))) {
+      fromExifThumbnail(image, thumbInfo, feedInfo, todo, orientation);
+    }
+    if (todo.isEmpty()) {
+      return;
+    }
+
+    // the preview raster is the source of everything smaller, sourceOrientation
+    // is what still has to be applied to it
+    BufferedImage preview;
+    int sourceOrientation = orientation;
+    boolean fromOriginal = true;
+    if (todo.remove(DerivativeType.PREVIEW)) {
+      if (image.getWidth() == 0) {
+        ImageGallery.readDimensions(image);
+      }
+      if (image.getWidth() == 0) {
+        throw new IOException("Can not read " + image.getFilename());
+      }
+      final boolean transposed = ImageUtils.isTransposed(orientation);
+      final int width = transposed ? image.getHeight() : image.getWidth();
+      final int height = transposed ? image.getWidth() : image.getHeight();
+      final int[] size = getPreviewSize(width, height);
+      if (size == null) {
+        // a small original is its own preview, browsers apply the orientation
+        previewInfo.setFile(image.getFile());
+        previewInfo.setUrl(gallery.getImageFileURL(image));
+        previewInfo.setWidth(width);
+        previewInfo.setHeight(height);
+        if (todo.isEmpty()) {
+          return;
+        }
+        preview = decodeForSquares(image, todo);
+      } else {
+        // scale in stored orientation, then turn the small raster
+        final int scaledWidth = transposed ? size[1] : size[0];
+        final int scaledHeight = transposed ? size[0] : size[1];
+        final BufferedImage original =
+          decode(image, scaledWidth, scaledHeight, false);
+        final BufferedImage scaled = gallery.getScaler(DerivativeType.PREVIEW)
+          .scale(original, scaledWidth, scaledHeight);
+        RasterPool.release(original);
+        preview = ImageUtils.orient(scaled, orientation);
+        if (preview != scaled) {
+          RasterPool.release(scaled);
+        }
+        sourceOrientation = 1;
+        fromOriginal = false;
+        write(preview, image, previewInfo, DerivativeType.PREVIEW);
+        previewInfo.setWidth(size[0]);
+        previewInfo.setHeight(size[1]);
+      }
+    } else if (previewInfo.getFile().isFile()) {
+      // a preview on disk was written upright
+      preview = decodeForSquares(previewInfo, todo);
+      sourceOrientation = 1;
+      fromOriginal = false;
+    } else {
+      preview = decodeForSquares(image, todo);
+    }
+    if (!fromOriginal && !todo.isEmpty()) {
+      // the preview of a panorama can be too short for the squares, which
+      // are then cut from the original rather than scaled up
+      final int side = getSquareSide(todo);
+      if (!isLargeEnough(preview, side, side)) {
+        RasterPool.release(preview);
+        preview = decodeForSquares(image, todo);
+        sourceOrientation = orientation;
+      }
+    }
+
+    BufferedImage thumbnail = null;
+    if (todo.contains(DerivativeType.THUMBNAIL)) {
+      thumbnail = writeSquare(image, preview, thumbInfo,
+        DerivativeType.THUMBNAIL, sourceOrientation);
+    }
+    if (todo.contains(DerivativeType.FEED)) {
+      if (thumbnail != null && isLargeEnough(
+        thumbnail, gallery.getFeedX(), gallery.getFeedY())) {
+        RasterPool.release(writeSquare(image, thumbnail, feedInfo,
+          DerivativeType.FEED, 1));
+      } else {
+        RasterPool.release(writeSquare(image, preview, feedInfo,
+          DerivativeType.FEED, sourceOrientation));
+      }
+    }
+    if (thumbnail != null) {
+      RasterPool.release(thumbnail);
+    }
+    RasterPool.release(preview);
+  }
+
+  /**
+   * Make the thumbnail and feed image from the thumbnail embedded in the
+   * EXIF data, where it is large enough.
+   * @param image the original
+   * @param thumbInfo the thumbnail
+   * @param feedInfo the feed image
+   * @param todo the derivatives still to make, those made are removed
+   * @param orientation the EXIF orientation to apply
+   * @throws IOException if a derivative can not be written
+   */
+  private void fromExifThumbnail(final ImageInfo image,
+    final ImageInfo thumbInfo, final ImageInfo feedInfo,
+    final Set<DerivativeType> todo, final int orientation)
+    throws IOException {
+    final BufferedImage embedded = readExifThumbnail(image);
+    if (embedded == null) {
+      return;
+    }
+    if (todo.contains(DerivativeType.THUMBNAIL) && isLargeEnough(embedded,
+      gallery.getThumbnailX(), gallery.getThumbnailY())) {
+      RasterPool.release(writeSquare(image, embedded, thumbInfo,
+        DerivativeType.THUMBNAIL, orientation));
+      todo.remove(DerivativeType.THUMBNAIL);
+    }
+    if (todo.contains(DerivativeType.FEED)
+      && isLargeEnough(embedded, gallery.getFeedX(), gallery.getFeedY())) {
+      RasterPool.release(writeSquare(image, embedded, feedInfo,
+        DerivativeType.FEED, orientation));
+      todo.remove(DerivativeType.FEED);
+    }
+    RasterPool.release(embedded);
+  }
+
+  /**
+   * Decode an image for the square derivatives only. Just the centre square
+   * is decoded, the rest of the image would be cropped away anyway.
+   * @param info the image to decode
+   * @param todo the derivatives to make
+   * @return the decoded square, possibly subsampled
+   * @throws IOException if the image can not be decoded
+   */
+  private BufferedImage decodeForSquares(final ImageInfo info,
+    final Set<DerivativeType> todo) throws IOException {
+    final int side = getSquareSide(todo);
+    return decode(info, side, side, true);
+  }
+
+  /**
+   * @param todo the derivatives to make
+   * @return the side of the largest square derivative to make
+   */
+  private int getSquareSide(final Set<DerivativeType> todo) {
+    int side = 1;
+    if (todo.contains(DerivativeType.THUMBNAIL)) {
+      side = Math.max(gallery.getThumbnailX(), gallery.getThumbnailY());
+    }
+    if (todo.contains(DerivativeType.FEED)) {
+      side = Math.max(side, Math.max(gallery.getFeedX(), gallery.getFeedY()));
+    }
+    return side;
+  }
+
+  /**
+   * Crop the centre square of an image and scale it to a thumbnail or feed
+   * image. The centre square is the same in any orientation, so the source
+   * is turned only after it has been scaled down.
+   * @param image the original, which gives the file format
+   * @param source the image to cut the square from
+   * @param info the derivative
+   * @param type THUMBNAIL or FEED
+   * @param orientation the EXIF orientation still to apply to the source
+   * @return the derivative raster, upright, leased from the RasterPool
+   * @throws IOException if the derivative can not be written
+   */
+  private BufferedImage writeSquare(final ImageInfo image,
+    final BufferedImage source, final ImageInfo info,
+    final DerivativeType type, final int orientation) throws IOException {
+    final int fullWidth = source.getWidth();
+    final int fullHeight = source.getHeight();
+
+    // now build the thumbnail image by first cropping it square, and then
+    // scaling it.
+    BufferedImage square;
+    if (fullWidth > fullHeight) {
+      final int diffX = fullWidth - fullHeight;
+      square = source.getSubimage(diffX / 2, 0, fullWidth - diffX, fullHeight);
+    } else if (fullHeight > fullWidth) {
+      final int diffY = fullHeight - fullWidth;
+      square = source.getSubimage(0, diffY / 2, fullWidth, fullHeight - diffY);
+    } else { // Image is already square
+      square = source;
+    }
+
+    final int width;
+    final int height;
+    if (type == DerivativeType.FEED) {
+      width = gallery.getFeedX();
+      height = gallery.getFeedY();
+    } else {
+      width = gallery.getThumbnailX();
+      height = gallery.getThumbnailY();
+    }
+    final boolean transposed = ImageUtils.isTransposed(orientation);
+    final BufferedImage stored = gallery.getScaler(type).scale(square,
+      transposed ? height : width, transposed ? width : height);
+    final BufferedImage scaled = ImageUtils.orient(stored, orientation);
+    if (scaled != stored) {
+      RasterPool.release(stored);
+    }
+    write(scaled, image, info, type);
+    info.setWidth(width);
+    info.setHeight(height);
+    return scaled;
+  }
+
+  /**
+   * Encode a derivative and write it, or keep it for flush().
+   * @param raster the derivative raster
+   * @param image the original, which gives the file format
+   * @param info the derivative
+   * @param type the kind of derivative
+   * @throws IOException if the derivative can not be encoded or written
+   */
+  private void write(final BufferedImage raster, final ImageInfo image,
+    final ImageInfo info, final DerivativeType type) throws IOException {
+    final EncoderSettings settings = gallery.getEncoderSettings(type);
+    if (deferred == null) {
+      ImageCodecs.write(raster, image.getExtention(), info.getFile(),
+        settings);
+    } else {
+      deferred.put(info.getFile(),
+        ImageCodecs.encode(raster, image.getExtention(), settings));
+    }
+  }
+
+  /**
+   * Decode an image at the lowest resolution which still covers a size.
+   * The dimensions from the header are stored in the image info, as the
+   * decoded image may be smaller. The raster is reserved in the decode
+   * budget first, an image which would not fit even on its own is
+   * subsampled further, and one whose header claims too many pixels is
+   * refused.
+   * @param info the image to decode
+   * @param minWidth the width the decoded image must cover
+   * @param minHeight the height the decoded image must cover
+   * @param square true to decode only the centre square
+   * @return the decoded, possibly subsampled, image
+   * @throws IOException if the image can not be decoded
+   */
+  private BufferedImage decode(final ImageInfo info, final int minWidth,
+    final int minHeight, final boolean square) throws IOException {
+    final ImageInputStream iis = ImageCodecs.open(info.getFile());
+    try {
+      final ImageReader reader =
+        ImageCodecs.getReader(iis, info.getExtention());
+      try {
+        final int width = reader.getWidth(0);
+        final int height = reader.getHeight(0);
+        final DecodeBudget budget = DecodeBudget.getInstance();
+        budget.check(info.getFilename(), width, height);
+        info.setWidth(width);
+        info.setHeight(height);
+        final ImageReadParam param = reader.getDefaultReadParam();
+        int regionWidth = width;
+        int regionHeight = height;
+        if (square && width != height) {
+          final int side = Math.min(width, height);
+          param.setSourceRegion(new Rectangle(
+            (width - side) / 2, (height - side) / 2, side, side));
+          regionWidth = side;
+          regionHeight = side;
+        }
+        int subsampling = Math.max(1, Math.min(
+          regionWidth / Math.max(1, minWidth),
+          regionHeight / Math.max(1, minHeight)) / SUBSAMPLE_MARGIN);
+        long bytes = getRasterBytes(regionWidth, regionHeight, subsampling);
+        while (!budget.fits(bytes)
+          && subsampling < Math.min(regionWidth, regionHeight)) {
+          subsampling++;
+          bytes = getRasterBytes(regionWidth, regionHeight, subsampling);
+        }
+        if (subsampling > 1) {
+          param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        reserved += budget.acquire(bytes);
+        return reader.read(0, param);
+      } finally {
+        ImageCodecs.release(reader);
+      }
+    } finally {
+      iis.close();
+    }
+  }
+
+  /**
+   * Decode the thumbnail embedded in the EXIF data of a JPEG, if it has the
+   * same aspect ratio as the original. Camera thumbnails of pictures which
+   * are not 4:3 are usually padded with black bars, those are not used.
+   * @param image the image
+   * @return the embedded thumbnail, or null if there is no usable one
+   */
+  private BufferedImage readExifThumbnail(final ImageInfo image) {
+    if (!(image.getExtention().equals(ImageNameFilter.JPEG)
+      || image.getExtention().equals(ImageNameFilter.JPG))) {
+      return null;
+    }
+    try {
+      final Metadata metadata =
+        ImageCodecs.readJpegMetadata(image.getFile(), null);
+      final ExifThumbnailDirectory directory =
+        metadata.getFirstDirectoryOfType(ExifThumbnailDirectory.class);
+      if (directory == null || !directory.hasThumbnailData()) {
+        return null;
+      }
+      final BufferedImage embedded =
+        decodeEmbedded(image, directory.getThumbnailData());
+      if (image.getWidth() == 0) {
+        ImageGallery.readDimensions(image);
+      }
+      if (image.getWidth() == 0 || image.getHeight() == 0) {
+        return null;
+      }
+      final double ratio = (double) image.getWidth()
+        * embedded.getHeight() / image.getHeight() / embedded.getWidth();
+      if (Math.abs(ratio - 1) > EXIF_THUMBNAIL_ASPECT) {
+        return null;
+      }
+      return embedded;
+    } catch (JpegProcessingException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Decode an embedded thumbnail. Its header is checked like that of any
+   * other image, a few bytes of JPEG can claim a huge raster.
+   * @param image the image it is embedded in
+   * @param data the thumbnail JPEG
+   * @return the thumbnail
+   * @throws IOException if it can not be decoded or is too large
+   */
+  private static BufferedImage decodeEmbedded(final ImageInfo image,
+    final byte[] data) throws IOException {
+    final ImageInputStream iis =
+      new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+    try {
+      final ImageReader reader =
+        ImageCodecs.getReader(iis, ImageNameFilter.JPG);
+      try {
+        DecodeBudget.getInstance().check(image.getFilename(),
+          reader.getWidth(0), reader.getHeight(0));
+        return reader.read(0);
+      } finally {
+        ImageCodecs.release(reader);
+      }
+    } finally {
+      iis.close();
+    }
+  }
+
+  /**
+   * Estimate the memory a decode and the first scaling step take.
+   * @param width width of the decoded region
+   * @param height height of the decoded region
+   * @param subsampling the source subsampling
+   * @return the bytes to reserve
+   */
+  private static long getRasterBytes(final int width, final int height,
+    final int subsampling) {
+    final long pixels = (long) ((width + subsampling - 1) / subsampling)
+      * ((height + subsampling - 1) / subsampling);
+    // the scaler's first halving holds another quarter
+    return (pixels + pixels / 4) * DecodeBudget.BYTES_PER_PIXEL;
+  }
+
+  /**
+   * @param source an image to cut a square derivative from
+   * @param width width of the derivative
+   * @param height height of the derivative
+   * @return true if the square crop of the image is not smaller than the
+   * derivative
+   */
+  private static boolean isLargeEnough(final BufferedImage source,
+    final int width, final int height) {
+    return Math.min(source.getWidth(), source.getHeight())
+      >= Math.max(width, height);
+  }
+
+  /**
+   * Compute the size of the preview of an image.
+   * @param fullWidth width of the original
+   * @param fullHeight height of the original
+   * @return width and height of the preview, or null if the original fits
+   * and is its own preview
+   */
+  private int[] getPreviewSize(final int fullWidth, final int fullHeight) {
+    final int previewX = gallery.getPreviewX();
+    final int previewY = gallery.getPreviewY();
+    if (fullWidth > previewX || fullHeight > previewY) {
+      int preX, preY;
+      Double pXd, pYd;
+      // landscape
+      if (fullWidth >= fullHeight && fullWidth > previewX) {
+        preX = previewX;
+        pYd = 1.0 * previewX * fullHeight / fullWidth;
+        preY = pYd.intValue();
+      } else if (fullHeight > previewY) {  //portrait
+        preY = previewY;
+        pXd = 1.0 * previewY * fullWidth / fullHeight;
+        preX = pXd.intValue();
+      } else { //square
+        preX = fullWidth;
+        preY = fullHeight;
+      }
+      return new int[] {preX, preY};
+    }
+    return null;
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * DerivativeType.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+/**
+ * The kinds of image a gallery derives from each original.
+ *
+ * @author scott
+ */
+public enum DerivativeType {
+  /** Screen sized image shown on its own. */
+  PREVIEW,
+  /** Square image in the gallery table. */
+  THUMBNAIL,
+  /** Small square image in the media RSS feed. */
+  FEED
+}
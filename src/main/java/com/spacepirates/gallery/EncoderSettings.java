@@ -0,0 +1,77 @@
+/*
+ * EncoderSettings.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+/**
+ * How a derivative is encoded: the compression quality and whether the
+ * image is written progressive (interlaced) or baseline. Settings a format
+ * does not support are ignored for it, e.g. quality for PNG on JREs whose
+ * PNG writer has no compression control.
+ *
+ * @author scott
+ */
+public final class EncoderSettings {
+
+  /** The writer defaults, baseline. */
+  public static final EncoderSettings DEFAULT =
+    new EncoderSettings(-1f, false);
+
+  /** Compression quality from 0 to 1, negative for the writer default. */
+  private final float quality;
+  /** Flag to write progressive images. */
+  private final boolean progressive;
+
+  /**
+   * Create encoder settings.
+   * @param inQuality compression quality from 0 to 1, negative for the
+   * writer default
+   * @param inProgressive true to write progressive images
+   */
+  public EncoderSettings(final float inQuality, final boolean inProgressive) {
+    quality = inQuality;
+    progressive = inProgressive;
+  }
+
+  /**
+   * @return compression quality from 0 to 1, negative for the writer default
+   */
+  public float getQuality() {
+    return quality;
+  }
+
+  /**
+   * @return true if images are written progressive
+   */
+  public boolean isProgressive() {
+    return progressive;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof EncoderSettings)) {
+      return false;
+    }
+    final EncoderSettings s = (EncoderSettings) o;
+    return Float.compare(quality, s.quality) == 0
+      && progressive == s.progressive;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Float.floatToIntBits(quality) + (progressive ? 1 : 0);
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * FileUtils.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * File helpers shared by the gallery classes.
+ *
+ * @author scott
+ */
+public final class FileUtils {
+
+  /** Static methods only. */
+  private FileUtils() {
+  }
+
+  /**
+   * Write a file so that readers only ever see the old or the new contents:
+   * the data goes to a temporary file in the same directory which is then
+   * renamed over the target.
+   * @param target the file to write
+   * @param data the new contents
+   * @throws IOException if the file can not be written
+   */
+  public static void writeAtomic(final File target, final byte[] data)
+    throws IOException {
+    final File tmp = File.createTempFile(
+      "." + target.getName(), ".tmp", target.getAbsoluteFile().getParentFile());
+    try {
+      final OutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(data);
+      } finally {
+        out.close();
+      }
+      try {
+        Files.move(tmp.toPath(), target.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * FragmentCache.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of rendered HTML fragments. Keys include the version of
+ * the gallery they were rendered from, so a fragment is never invalidated
+ * explicitly: a changed gallery simply asks for a new key and the old
+ * fragment ages out. The cache is bounded by entry count and by the total
+ * number of characters held, least recently used fragments go first.
+ *
+ * @author scott
+ */
+public final class FragmentCache {
+
+  /** Default maximum number of fragments. */
+  private static final int D_MAX_ENTRIES = 256;
+  /** Default maximum number of characters held. */
+  private static final long D_MAX_CHARS = 8L * 1024 * 1024;
+  /** The single instance. */
+  private static final FragmentCache INSTANCE = new FragmentCache();
+
+  /** Fragments in least recently used order, guarded by this. */
+  private final Map<String, String> fragments =
+    new LinkedHashMap<String, String>(16, 0.75f, true);
+  /** Maximum number of fragments. */
+  private int maxEntries = D_MAX_ENTRIES;
+  /** Maximum number of characters held. */
+  private long maxChars = D_MAX_CHARS;
+  /** Number of characters held, guarded by this. */
+  private long chars = 0;
+
+  /** Use getInstance(). */
+  private FragmentCache() {
+  }
+
+  /**
+   * Get the cache.
+   * @return the process wide cache
+   */
+  public static FragmentCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Get a fragment.
+   * @param key the fragment key
+   * @return the fragment or null
+   */
+  public synchronized String get(final String key) {
+    return fragments.get(key);
+  }
+
+  /**
+   * Add a fragment, evicting least recently used fragments as needed.
+   * Fragments larger than the whole cache are not kept.
+   * @param key the fragment key
+   * @param fragment the rendered fragment
+   */
+  public synchronized void put(final String key, final String fragment) {
+    if (fragment.length() > maxChars) {
+      return;
+    }
+    final String old = fragments.put(key, fragment);
+    if (old != null) {
+      chars -= old.length();
+    }
+    chars += fragment.length();
+    final Iterator<String> it = fragments.values().iterator();
+    while ((fragments.size() > maxEntries || chars > maxChars)
+      && it.hasNext()) {
+      chars -= it.next().length();
+      it.remove();
+    }
+  }
+
+  /** Drop all fragments. */
+  public synchronized void clear() {
+    fragments.clear();
+    chars = 0;
+  }
+
+  /**
+   * @return the maxEntries
+   */
+  public synchronized int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @param inMaxEntries the maxEntries to set
+   */
+  public synchronized void setMaxEntries(final int inMaxEntries) {
+    this.maxEntries = inMaxEntries;
+  }
+
+  /**
+   * @return the maxChars
+   */
+  public synchronized long getMaxChars() {
+    return maxChars;
+  }
+
+  /**
+   * @param inMaxChars the maxChars to set
+   */
+  public synchronized void setMaxChars(final long inMaxChars) {
+    this.maxChars = inMaxChars;
+  }
+}
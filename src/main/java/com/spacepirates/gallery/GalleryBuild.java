@@ -0,0 +1,147 @@
+/*
+ * GalleryBuild.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle on the derivative work of one gallery, as started by init() or a
+ * GalleryBuilder. It tells how far the work is, and lets it be cancelled
+ * without touching other galleries. The future completes with the gallery
+ * once every image was processed and the manifest saved, or is cancelled.
+ *
+ * @author scott
+ */
+public final class GalleryBuild {
+
+  /** The gallery. */
+  private final ImageGallery gallery;
+  /** Completes with the gallery. */
+  private final CompletableFuture<ImageGallery> future =
+    new CompletableFuture<ImageGallery>();
+  /** Number of images to process. */
+  private final AtomicInteger total = new AtomicInteger();
+  /** Number of images processed, successfully or not. */
+  private final AtomicInteger completed = new AtomicInteger();
+  /** Number of images which failed. */
+  private final AtomicInteger failed = new AtomicInteger();
+  /** Flag set by cancel(). */
+  private volatile boolean cancelled = false;
+
+  /**
+   * Create a handle.
+   * @param inGallery the gallery being built
+   */
+  GalleryBuild(final ImageGallery inGallery) {
+    gallery = inGallery;
+  }
+
+  /**
+   * @return the gallery, its images are listed but derivatives may still be
+   * missing
+   */
+  public ImageGallery getGallery() {
+    return gallery;
+  }
+
+  /**
+   * @return completes with the gallery when the build is over
+   */
+  public CompletableFuture<ImageGallery> getFuture() {
+    return future;
+  }
+
+  /**
+   * @return the number of images which need derivatives
+   */
+  public int getTotal() {
+    return total.get();
+  }
+
+  /**
+   * @return the number of images processed so far, including failed ones
+   */
+  public int getCompleted() {
+    return completed.get();
+  }
+
+  /**
+   * @return the number of images whose derivatives could not be made
+   */
+  public int getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * @return the share of the images processed, from 0 to 1
+   */
+  public double getProgress() {
+    final int all = total.get();
+    return all == 0 ? 1.0 : (double) completed.get() / all;
+  }
+
+  /**
+   * @return true once the build is over, or cancelled
+   */
+  public boolean isDone() {
+    return future.isDone();
+  }
+
+  /**
+   * @return true if the build was cancelled
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Stop the build. Images not started yet are dropped, those in progress
+   * are finished, and the manifest is saved so they are not made again.
+   * The future is cancelled right away.
+   */
+  public void cancel() {
+    cancelled = true;
+    GalleryExecutor.getInstance().cancel(this);
+    future.cancel(false);
+  }
+
+  /**
+   * @param inTotal the number of images which need derivatives
+   */
+  void setTotal(final int inTotal) {
+    total.set(inTotal);
+  }
+
+  /**
+   * Count an image as processed.
+   * @param success false if its derivatives could not be made
+   */
+  void imageDone(final boolean success) {
+    if (!success) {
+      failed.incrementAndGet();
+    }
+    completed.incrementAndGet();
+  }
+
+  /**
+   * Complete the future, called once the manifest is saved.
+   */
+  void complete() {
+    future.complete(gallery);
+  }
+}
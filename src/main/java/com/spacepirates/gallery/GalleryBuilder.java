@@ -0,0 +1,216 @@
+/*
+ * GalleryBuilder.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configures a gallery and starts building it, see ImageGallery.builder().
+ * start() lists the images and returns once the derivative work is queued;
+ * the GalleryBuild it returns tells when the work is done.
+ *
+ * @author scott
+ */
+public final class GalleryBuilder {
+
+  /** Full path of the image directory. */
+  private final String baseDir;
+  /** Number of thumbnails per row. */
+  private int thumbsPerRow = ImageGallery.D_THUMBS;
+  /** Flag to make feed thumbnails. */
+  private boolean feedThumbnails = false;
+  /** Flag to rotate images by their EXIF orientation. */
+  private boolean rotateImages = false;
+  /** Flag to rename image files to lower case. */
+  private boolean lowerCaseNames = false;
+  /** Name of the gallery root directory, null for the default. */
+  private String galleryRoot;
+  /** Flag to make derivatives on the GalleryExecutor. */
+  private boolean useThreads = true;
+  /** Priority of the derivative work. */
+  private GalleryExecutor.Priority priority =
+    GalleryExecutor.Priority.BACKFILL;
+  /** Flag to compare contents of images whose size or time changed. */
+  private boolean contentHash = false;
+  /** Flag to make thumbnails from the thumbnail embedded in EXIF data. */
+  private boolean exifThumbnails = false;
+  /** Scalers which replace the gallery defaults. */
+  private final Map<DerivativeType, ImageScaler> scalers =
+    new EnumMap<DerivativeType, ImageScaler>(DerivativeType.class);
+  /** Encoder settings which replace the gallery defaults. */
+  private final Map<DerivativeType, EncoderSettings> encoders =
+    new EnumMap<DerivativeType, EncoderSettings>(DerivativeType.class);
+
+  /**
+   * Use ImageGallery.builder().
+   * @param inBaseDir full path of the image directory
+   */
+  GalleryBuilder(final String inBaseDir) {
+    baseDir = inBaseDir;
+  }
+
+  /**
+   * @param inThumbsPerRow number of thumbnails per row
+   * @return this builder
+   */
+  public GalleryBuilder thumbsPerRow(final int inThumbsPerRow) {
+    thumbsPerRow = inThumbsPerRow;
+    return this;
+  }
+
+  /**
+   * @param inFeedThumbnails true to make feed thumbnails
+   * @return this builder
+   */
+  public GalleryBuilder feedThumbnails(final boolean inFeedThumbnails) {
+    feedThumbnails = inFeedThumbnails;
+    return this;
+  }
+
+  /**
+   * @param inRotateImages true to rotate images by their EXIF orientation
+   * @return this builder
+   */
+  public GalleryBuilder rotateImages(final boolean inRotateImages) {
+    rotateImages = inRotateImages;
+    return this;
+  }
+
+  /**
+   * @param inLowerCaseNames true to rename image files to lower case
+   * @return this builder
+   */
+  public GalleryBuilder lowerCaseNames(final boolean inLowerCaseNames) {
+    lowerCaseNames = inLowerCaseNames;
+    return this;
+  }
+
+  /**
+   * @param inGalleryRoot name of the gallery root directory
+   * @return this builder
+   */
+  public GalleryBuilder galleryRoot(final String inGalleryRoot) {
+    galleryRoot = inGalleryRoot;
+    return this;
+  }
+
+  /**
+   * @param inUseThreads false to make the derivatives in start() itself
+   * @return this builder
+   */
+  public GalleryBuilder useThreads(final boolean inUseThreads) {
+    useThreads = inUseThreads;
+    return this;
+  }
+
+  /**
+   * @param inPriority the priority of the derivative work
+   * @return this builder
+   */
+  public GalleryBuilder priority(final GalleryExecutor.Priority inPriority) {
+    priority = inPriority;
+    return this;
+  }
+
+  /**
+   * @param inContentHash true to compare the contents of images whose size
+   * or modification time changed, see ImageGallery.setContentHash()
+   * @return this builder
+   */
+  public GalleryBuilder contentHash(final boolean inContentHash) {
+    contentHash = inContentHash;
+    return this;
+  }
+
+  /**
+   * @param inExifThumbnails true to make thumbnails from the thumbnail
+   * embedded in the EXIF data, see ImageGallery.setExifThumbnails()
+   * @return this builder
+   */
+  public GalleryBuilder exifThumbnails(final boolean inExifThumbnails) {
+    exifThumbnails = inExifThumbnails;
+    return this;
+  }
+
+  /**
+   * @param type the derivative type
+   * @param scaler the scaler for it, e.g. one of the ScalingMethods
+   * @return this builder
+   */
+  public GalleryBuilder scaler(final DerivativeType type,
+    final ImageScaler scaler) {
+    scalers.put(type, scaler);
+    return this;
+  }
+
+  /**
+   * @param type the derivative type
+   * @param settings quality and progressive mode for it
+   * @return this builder
+   */
+  public GalleryBuilder encoderSettings(final DerivativeType type,
+    final EncoderSettings settings) {
+    encoders.put(type, settings);
+    return this;
+  }
+
+  /**
+   * @return full path of the image directory
+   */
+  String getBaseDir() {
+    return baseDir;
+  }
+
+  /**
+   * Get the settings which change what is built, so GalleryRegistry can
+   * tell galleries of the same directory apart.
+   * @return the settings, comparable with equals()
+   */
+  List<Object> getSettings() {
+    return Arrays.<Object>asList(thumbsPerRow, feedThumbnails, rotateImages,
+      lowerCaseNames, galleryRoot, contentHash, exifThumbnails,
+      new EnumMap<DerivativeType, ImageScaler>(scalers),
+      new EnumMap<DerivativeType, EncoderSettings>(encoders));
+  }
+
+  /**
+   * Create the gallery, list its images and queue its derivative work.
+   * @return the handle on the derivative work
+   */
+  public GalleryBuild start() {
+    final ImageGallery gallery = new ImageGallery();
+    if (galleryRoot != null) {
+      gallery.setGalleryRoot(galleryRoot);
+    }
+    gallery.setLowerCaseNames(lowerCaseNames);
+    gallery.setRotateImages(rotateImages);
+    gallery.setContentHash(contentHash);
+    gallery.setExifThumbnails(exifThumbnails);
+    for (Map.Entry<DerivativeType, ImageScaler> scaler : scalers.entrySet()) {
+      gallery.setScaler(scaler.getKey(), scaler.getValue());
+    }
+    for (Map.Entry<DerivativeType, EncoderSettings> encoder
+      : encoders.entrySet()) {
+      gallery.setEncoderSettings(encoder.getKey(), encoder.getValue());
+    }
+    return gallery.start(baseDir, thumbsPerRow, feedThumbnails, useThreads,
+      priority);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * GalleryContextListener.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.util.logging.Logger;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Starts the GalleryExecutor with the web application, so all galleries of
+ * the application share one scheduler, and stops its threads and those of
+ * the GalleryWatcher when the application is stopped or redeployed. The
+ * concurrency cap is set with the maxConcurrentImages context init
+ * parameter.
+ *
+ * @author scott
+ */
+@WebListener
+public class GalleryContextListener implements ServletContextListener {
+
+  /** Logger for this class. */
+  private static final Logger LOG =
+    Logger.getLogger(GalleryContextListener.class.getName());
+
+  @Override
+  public void contextInitialized(final ServletContextEvent event) {
+    final GalleryExecutor executor = GalleryExecutor.getInstance();
+    final String max = event.getServletContext()
+      .getInitParameter(HttpImageGallery.P_MAX_CONCURRENT);
+    if (max != null) {
+      try {
+        executor.setMaxActive(Integer.parseInt(max.trim()));
+      } catch (NumberFormatException e) {
+        LOG.warning("Bad " + HttpImageGallery.P_MAX_CONCURRENT
+          + " parameter: " + max);
+      }
+    }
+    LOG.info("Gallery executor started: " + executor.getParallelism()
+      + " CPU threads, " + executor.getIoThreads() + " I/O threads, "
+      + executor.getMaxActive() + " images at once");
+  }
+
+  @Override
+  public void contextDestroyed(final ServletContextEvent event) {
+    // the watcher first, it hands its updates to the executor
+    GalleryWatcher.shutdown();
+    GalleryExecutor.shutdown();
+    RasterPool.clear();
+    ImageCodecs.clear();
+  }
+}
@@ -0,0 +1,545 @@
+/*
+ * GalleryExecutor.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process wide scheduler and pools for derivative work. Blocking file work,
+ * stat calls, EXIF parsing, reading originals and writing derivatives, runs
+ * on a large I/O pool; decoding, scaling and encoding run on a pool with one
+ * thread per CPU. A StagedTask moves from one to the other, so a CPU is
+ * never held by a thread waiting on a slow disk or an NFS server.
+ * <p>
+ * Tasks wait in queues by priority and owner, normally the gallery. Only
+ * so many tasks are in flight at once, from the start of their read to the
+ * end of their write, which bounds both the work read ahead of the CPUs
+ * and the memory held by images in progress. When a task ends, the next
+ * one is taken from the highest priority with work queued, and within a
+ * priority the owners take turns, so one large gallery does not hold up
+ * the others. Encoded derivatives waiting to be written are bounded too;
+ * when that backlog is full, the CPU thread writes them itself. CPU threads
+ * never wait for the I/O pool, so the stages can not deadlock.
+ * <p>
+ * In a web application the GalleryContextListener configures the executor
+ * and shuts it down with the application.
+ *
+ * @author scott
+ */
+public final class GalleryExecutor implements Executor {
+
+  /** Logger. */
+  private static final Logger LOG =
+    Logger.getLogger(GalleryExecutor.class.getName());
+  /** I/O threads per CPU. */
+  private static final int D_IO_PER_CPU = 4;
+  /** Least number of I/O threads. */
+  private static final int D_MIN_IO_THREADS = 8;
+  /** Default tasks per CPU which may be in flight. */
+  private static final int D_ACTIVE_PER_CPU = 4;
+  /** Encoded tasks per CPU which may wait to be written. */
+  private static final int D_WRITE_BEHIND = 2;
+  /** Seconds an idle I/O thread is kept. */
+  private static final long IO_KEEP_ALIVE = 60;
+  /** Why tasks are ended by shutdown(). */
+  private static final String SHUT_DOWN = "Gallery executor shut down";
+  /** Seconds shutdown() lets work in flight finish. */
+  private static final long STOP_WAIT = 10;
+
+  /** The running executor, null until first used or after shutdown(). */
+  private static GalleryExecutor instance;
+
+  /** Scheduling classes, highest first. */
+  public enum Priority {
+    /** Work someone is waiting on now, e.g. a gallery being viewed. */
+    INTERACTIVE,
+    /** Work nobody is waiting on, e.g. a gallery built in advance. */
+    BACKFILL
+  }
+
+  /** The CPU pool. */
+  private final ForkJoinPool pool;
+  /** The I/O pool. */
+  private final ThreadPoolExecutor io;
+  /** Tasks which may wait for the I/O pool to write them. */
+  private final Semaphore writeBehind;
+  /** Queued tasks by priority and owner, guarded by this. */
+  private final Map<Priority, Map<Object, Deque<StagedTask>>> queues =
+    new EnumMap<Priority, Map<Object, Deque<StagedTask>>>(Priority.class);
+  /**
+   * Owners with queued tasks by priority, in the order they take turns,
+   * guarded by this.
+   */
+  private final Map<Priority, Deque<Object>> turns =
+    new EnumMap<Priority, Deque<Object>>(Priority.class);
+  /** Most tasks in flight at once, guarded by this. */
+  private int maxActive;
+  /** Tasks in flight, guarded by this. */
+  private int active = 0;
+  /** Flag set by shutdown(), guarded by this. */
+  private boolean stopped = false;
+
+  /** Use getInstance(). */
+  private GalleryExecutor() {
+    final int cpus = Runtime.getRuntime().availableProcessors();
+    pool = new ForkJoinPool(cpus,
+      new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        @Override
+        public ForkJoinWorkerThread newThread(final ForkJoinPool inPool) {
+          final ForkJoinWorkerThread thread =
+            new ForkJoinWorkerThread(inPool) { };
+          thread.setName("lazygallery-" + thread.getPoolIndex());
+          thread.setDaemon(true);
+          return thread;
+        }
+      }, null, true);
+    final int ioThreads = Math.max(D_MIN_IO_THREADS, cpus * D_IO_PER_CPU);
+    final AtomicInteger count = new AtomicInteger();
+    io = new ThreadPoolExecutor(ioThreads, ioThreads, IO_KEEP_ALIVE,
+      TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread thread =
+            new Thread(r, "lazygallery-io-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    io.allowCoreThreadTimeOut(true);
+    writeBehind = new Semaphore(cpus * D_WRITE_BEHIND);
+    maxActive = cpus * D_ACTIVE_PER_CPU;
+    for (Priority priority : Priority.values()) {
+      queues.put(priority, new HashMap<Object, Deque<StagedTask>>());
+      turns.put(priority, new ArrayDeque<Object>());
+    }
+  }
+
+  /**
+   * Get the executor, starting it on first use.
+   * @return the process wide executor
+   */
+  public static synchronized GalleryExecutor getInstance() {
+    if (instance == null) {
+      instance = new GalleryExecutor();
+    }
+    return instance;
+  }
+
+  /**
+   * Stop the executor, e.g. when the web application is stopped. Queued
+   * tasks are ended with an exception, tasks in flight are given a while to
+   * finish before their threads are interrupted. A later getInstance()
+   * starts a new executor.
+   */
+  public static void shutdown() {
+    final GalleryExecutor stopping;
+    synchronized (GalleryExecutor.class) {
+      stopping = instance;
+      instance = null;
+    }
+    if (stopping != null) {
+      stopping.stop();
+    }
+  }
+
+  /**
+   * Run CPU bound work.
+   * @param task the task
+   */
+  @Override
+  public void execute(final Runnable task) {
+    pool.execute(task);
+  }
+
+  /**
+   * Run blocking I/O.
+   * @param task the task
+   */
+  public void executeIo(final Runnable task) {
+    io.execute(task);
+  }
+
+  /**
+   * Queue a task to run through its read, compute and write stages.
+   * @param task the task
+   * @param owner what the task belongs to, owners of the same priority take
+   * turns
+   * @param priority the priority
+   */
+  public void submit(final StagedTask task, final Object owner,
+    final Priority priority) {
+    final boolean queued;
+    synchronized (this) {
+      if (!stopped) {
+        Deque<StagedTask> queue = queues.get(priority).get(owner);
+        if (queue == null) {
+          queue = new ArrayDeque<StagedTask>();
+          queues.get(priority).put(owner, queue);
+          turns.get(priority).addLast(owner);
+        }
+        queue.addLast(task);
+      }
+      queued = !stopped;
+    }
+    if (queued) {
+      dispatch();
+    } else {
+      cancel(task, SHUT_DOWN);
+    }
+  }
+
+  /**
+   * Move the queued tasks of an owner to the interactive priority, ahead of
+   * all background work. Tasks queued later get the priority they are
+   * submitted with.
+   * @param owner the owner
+   */
+  public synchronized void prioritize(final Object owner) {
+    final Deque<StagedTask> queued =
+      queues.get(Priority.BACKFILL).remove(owner);
+    if (queued == null) {
+      return;
+    }
+    turns.get(Priority.BACKFILL).remove(owner);
+    final Deque<StagedTask> queue =
+      queues.get(Priority.INTERACTIVE).get(owner);
+    if (queue == null) {
+      queues.get(Priority.INTERACTIVE).put(owner, queued);
+      turns.get(Priority.INTERACTIVE).addLast(owner);
+    } else {
+      queue.addAll(queued);
+    }
+  }
+
+  /**
+   * Drop the queued tasks of an owner. They are ended with an exception,
+   * tasks already in flight run to the end.
+   * @param owner the owner
+   */
+  public void cancel(final Object owner) {
+    final List<StagedTask> dropped = new ArrayList<StagedTask>();
+    synchronized (this) {
+      for (Priority priority : Priority.values()) {
+        final Deque<StagedTask> queued = queues.get(priority).remove(owner);
+        if (queued != null) {
+          turns.get(priority).remove(owner);
+          dropped.addAll(queued);
+        }
+      }
+    }
+    for (StagedTask task : dropped) {
+      cancel(task, "Cancelled");
+    }
+  }
+
+  /**
+   * Start queued tasks while there is room.
+   */
+  private void dispatch() {
+    while (true) {
+      final StagedTask task;
+      synchronized (this) {
+        if (stopped || active >= maxActive) {
+          return;
+        }
+        task = next();
+        if (task == null) {
+          return;
+        }
+        active++;
+      }
+      start(task);
+    }
+  }
+
+  /**
+   * Take the next task: the highest priority with work queued, and the
+   * owner whose turn it is.
+   * @return the task, or null if none is queued
+   */
+  private StagedTask next() {
+    for (Priority priority : Priority.values()) {
+      final Object owner = turns.get(priority).pollFirst();
+      if (owner != null) {
+        final Deque<StagedTask> queue = queues.get(priority).get(owner);
+        final StagedTask task = queue.pollFirst();
+        if (queue.isEmpty()) {
+          queues.get(priority).remove(owner);
+        } else {
+          turns.get(priority).addLast(owner);
+        }
+        return task;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Run the read stage of a task and hand it to the CPU pool.
+   * @param task the task
+   */
+  private void start(final StagedTask task) {
+    try {
+      io.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.read();
+            pool.execute(new Runnable() {
+              @Override
+              public void run() {
+                compute(task);
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            end(task, new InterruptedIOException(SHUT_DOWN));
+          } catch (Throwable t) {
+            fail(task, t);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // shut down after the task was taken from its queue
+      end(task, new InterruptedIOException(SHUT_DOWN));
+    }
+  }
+
+  /**
+   * Run the compute stage of a task and pass it on to be written.
+   * @param task the task
+   */
+  private void compute(final StagedTask task) {
+    try {
+      task.compute();
+    } catch (Throwable t) {
+      fail(task, t);
+      return;
+    }
+    if (writeBehind.tryAcquire()) {
+      try {
+        io.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              write(task);
+            } finally {
+              writeBehind.release();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // shut down while computing
+        writeBehind.release();
+        end(task, new InterruptedIOException(SHUT_DOWN));
+      }
+    } else {
+      // the writes are behind, do this one here rather than queue more
+      write(task);
+    }
+  }
+
+  /**
+   * Run the write stage of a task and end it.
+   * @param task the task
+   */
+  private void write(final StagedTask task) {
+    try {
+      task.write();
+    } catch (Throwable t) {
+      fail(task, t);
+      return;
+    }
+    end(task, null);
+  }
+
+  /**
+   * End a task which failed in one of its stages. An Error, e.g. running
+   * out of memory on a large decode, still ends the task so its owner hears
+   * of it, and is then thrown on.
+   * @param task the task
+   * @param t what it failed with
+   */
+  private void fail(final StagedTask task, final Throwable t) {
+    if (t instanceof Exception) {
+      end(task, (Exception) t);
+      return;
+    }
+    end(task, new IOException(t.toString(), t));
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+  }
+
+  /**
+   * End a task and start the next one in its place.
+   * @param task the task
+   * @param failure the exception which ended the task early, or null
+   */
+  private void end(final StagedTask task, final Exception failure) {
+    try {
+      task.done(failure);
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Task failed to complete", e);
+    } finally {
+      synchronized (this) {
+        active--;
+      }
+      dispatch();
+    }
+  }
+
+  /**
+   * Stop the pools and end the queued tasks.
+   */
+  private void stop() {
+    final List<StagedTask> dropped = new ArrayList<StagedTask>();
+    synchronized (this) {
+      stopped = true;
+      for (Priority priority : Priority.values()) {
+        for (Deque<StagedTask> queue : queues.get(priority).values()) {
+          dropped.addAll(queue);
+        }
+        queues.get(priority).clear();
+        turns.get(priority).clear();
+      }
+    }
+    for (StagedTask task : dropped) {
+      cancel(task, SHUT_DOWN);
+    }
+    // a task in flight runs on or is ended when its next stage is refused
+    pool.shutdown();
+    io.shutdown();
+    try {
+      if (!io.awaitTermination(STOP_WAIT, TimeUnit.SECONDS)
+        || !pool.awaitTermination(STOP_WAIT, TimeUnit.SECONDS)) {
+        LOG.warning("Derivative work still running, interrupting it");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    pool.shutdownNow();
+    io.shutdownNow();
+  }
+
+  /**
+   * End a task which was never started.
+   * @param task the task
+   * @param reason why it was not
+   */
+  private static void cancel(final StagedTask task, final String reason) {
+    try {
+      task.done(new InterruptedIOException(reason));
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Task failed to complete", e);
+    }
+  }
+
+
+  /**
+   * @return the number of CPU threads
+   */
+  public int getParallelism() {
+    return pool.getParallelism();
+  }
+
+  /**
+   * @return the number of I/O threads
+   */
+  public int getIoThreads() {
+    return io.getMaximumPoolSize();
+  }
+
+  /**
+   * @return the most tasks in flight at once
+   */
+  public synchronized int getMaxActive() {
+    return maxActive;
+  }
+
+  /**
+   * @param inMaxActive the most tasks in flight at once, at least 1
+   */
+  public void setMaxActive(final int inMaxActive) {
+    synchronized (this) {
+      maxActive = Math.max(1, inMaxActive);
+    }
+    dispatch();
+  }
+
+  /**
+   * @return the number of tasks in flight
+   */
+  public synchronized int getActive() {
+    return active;
+  }
+
+  /**
+   * Work done in three stages: read on the I/O pool, compute on the CPU
+   * pool, and write on the I/O pool again. Each stage sees what the one
+   * before it stored in the task. If a stage fails the later ones are
+   * skipped, and done() is called exactly once either way.
+   */
+  public abstract static class StagedTask {
+
+    /**
+     * Blocking reads, e.g. stat calls, metadata and prefetching the file to
+     * decode.
+     * @throws IOException if reading fails
+     */
+    protected abstract void read() throws IOException;
+
+    /**
+     * CPU bound work, e.g. decoding, scaling and encoding. It must not
+     * block on the file system.
+     * @throws IOException if the work fails
+     */
+    protected abstract void compute() throws IOException;
+
+    /**
+     * Blocking writes of the results.
+     * @throws IOException if writing fails
+     */
+    protected abstract void write() throws IOException;
+
+    /**
+     * Called once the task is over, on whichever thread ran its last stage.
+     * @param failure the exception which ended the task early, or null
+     */
+    protected abstract void done(Exception failure);
+  }
+}
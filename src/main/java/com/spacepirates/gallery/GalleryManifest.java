@@ -0,0 +1,440 @@
+/*
+ * GalleryManifest.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compact binary record of what is known about each image in a gallery
+ * directory: the size and modification time of the original, its pixel
+ * dimensions, EXIF orientation and which derivatives exist. It is read with
+ * a single sequential read, so a gallery whose images have not changed opens
+ * without probing the preview, thumbnail, feed and EXIF files of every image.
+ *
+ * @author scott
+ */
+public class GalleryManifest {
+
+  /** Name of the manifest file in the image directory. */
+  public static final String FILE_NAME = "lazygallery.manifest";
+  /** A preview image exists in the preview directory. */
+  public static final int PREVIEW = 1;
+  /** The original is small enough to be its own preview. */
+  public static final int PREVIEW_ORIGINAL = 1 << 1;
+  /** A thumbnail image exists in the thumbnail directory. */
+  public static final int THUMBNAIL = 1 << 2;
+  /** A feed thumbnail exists in the feed directory. */
+  public static final int FEED = 1 << 3;
+  /** A .exif file exists in the preview directory. */
+  public static final int EXIF = 1 << 4;
+  /** Derivatives were made with the EXIF orientation applied. */
+  public static final int ORIENTED = 1 << 5;
+
+  /** File signature, "LGM1". */
+  private static final int MAGIC = 0x4c474d31;
+  /**
+   * Format version, bump when the entry layout or the meaning of the flags
+   * changes.
+   */
+  private static final int VERSION = 3;
+
+  /** The manifest file. */
+  private final File file;
+  /** Derivative sizes the entries were made for. */
+  private final int[] sizes;
+  /** Entries by image file name. */
+  private final Map<String, Entry> entries =
+    new ConcurrentHashMap<String, Entry>();
+  /** Number of changes made to the entries. */
+  private final AtomicLong changes = new AtomicLong();
+  /** Value of changes when the entries last matched the file. */
+  private volatile long saved = 0;
+  /** Set if the file was made for another format version or sizes. */
+  private boolean stale = false;
+
+  /**
+   * Create an empty manifest for a gallery.
+   * @param gallery the gallery, which supplies the directory and sizes
+   */
+  public GalleryManifest(final ImageGallery gallery) {
+    file = new File(gallery.getImageDirPath(), FILE_NAME);
+    sizes = new int[] {
+      gallery.getPreviewX(), gallery.getPreviewY(),
+      gallery.getThumbnailX(), gallery.getThumbnailY(),
+      gallery.getFeedX(), gallery.getFeedY()};
+  }
+
+  /**
+   * Load the manifest file. A missing or unreadable file leaves the
+   * manifest empty, which makes the gallery fall back to checking for each
+   * derivative on disk. A file of another format version or derivative
+   * sizes also leaves it empty, but marks it stale, see isStale().
+   * @return true if entries were loaded
+   */
+  public boolean load() {
+    entries.clear();
+    saved = changes.get();
+    stale = false;
+    if (!file.isFile()) {
+      return false;
+    }
+    try {
+      final DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+      if (in.readInt() != MAGIC) {
+        return false;
+      }
+      if (in.readInt() != VERSION) {
+        // the flags may mean something else, e.g. before ORIENTED
+        stale = true;
+        return false;
+      }
+      for (int i = 0; i < sizes.length; i++) {
+        if (in.readInt() != sizes[i]) {
+          // derivative sizes were changed, what is on disk is stale
+          stale = true;
+          return false;
+        }
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        final Entry entry = Entry.read(in);
+        entries.put(entry.getName(), entry);
+      }
+      return true;
+    } catch (IOException e) {
+      entries.clear();
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the last load() found a file made for another format
+   * version or other derivative sizes, so the derivatives on disk can not be
+   * trusted even where they exist
+   */
+  public boolean isStale() {
+    return stale;
+  }
+
+  /**
+   * Write the manifest file if anything changed. The changes count as saved
+   * only once the file was written, so a failed save is retried by the
+   * next one, and changes made while it is written are left for the next.
+   * @throws IOException if it can not be written
+   */
+  public void save() throws IOException {
+    final long snapshot = changes.get();
+    if (snapshot == saved) {
+      return;
+    }
+    final ByteArrayOutputStream bytes =
+      new ByteArrayOutputStream(64 + entries.size() * 64);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    for (int size : sizes) {
+      out.writeInt(size);
+    }
+    final Collection<Entry> values = entries.values();
+    out.writeInt(values.size());
+    for (Entry entry : values) {
+      entry.write(out);
+    }
+    out.flush();
+    FileUtils.writeAtomic(file, bytes.toByteArray());
+    saved = snapshot;
+  }
+
+  /**
+   * Get the entry for an image.
+   * @param name the image file name
+   * @return the entry or null
+   */
+  public Entry get(final String name) {
+    return entries.get(name);
+  }
+
+  /**
+   * Record the current state of an image.
+   * @param entry the entry
+   */
+  public void put(final Entry entry) {
+    if (!entry.equals(entries.put(entry.getName(), entry))) {
+      changes.incrementAndGet();
+    }
+  }
+
+  /**
+   * Forget images which are no longer in the gallery.
+   * @param names the file names of the images to keep
+   */
+  public void retainAll(final Collection<String> names) {
+    if (entries.keySet().retainAll(names)) {
+      changes.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the file names of all images with an entry
+   */
+  public Collection<String> getNames() {
+    return new ArrayList<String>(entries.keySet());
+  }
+
+  /**
+   * @return the manifest file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return the number of entries
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * What is known about a single image.
+   */
+  public static final class Entry {
+
+    /** Image file name. */
+    private final String name;
+    /** Size of the original in bytes. */
+    private final long length;
+    /** Modification time of the original. */
+    private final long lastModified;
+    /** Pixel dimensions of the original, preview, thumbnail and feed. */
+    private final int[] dimensions;
+    /** EXIF orientation, 0 if unknown. */
+    private final int orientation;
+    /** Derivative status flags. */
+    private final int flags;
+    /** Content hash of the original, 0 if not computed. */
+    private final long hash;
+
+    /**
+     * Create an entry from an image whose derivatives have been created.
+     * @param image the image
+     * @param inFlags derivative status flags
+     * @param inHash content hash of the original, 0 if not computed
+     */
+    public Entry(final ImageInfo image, final int inFlags, final long inHash) {
+      this(image.getFilename(), image.getLength(), image.getLastModified(),
+        new int[] {
+          image.getWidth(), image.getHeight(),
+          width(image.getPreviewInfo()), height(image.getPreviewInfo()),
+          width(image.getThumbnailInfo()), height(image.getThumbnailInfo()),
+          width(image.getFeedInfo()), height(image.getFeedInfo())},
+        image.getOrientation(), inFlags, inHash);
+    }
+
+    /**
+     * Create an entry.
+     * @param inName image file name
+     * @param inLength size of the original
+     * @param inLastModified modification time of the original
+     * @param inDimensions width and height of original and derivatives
+     * @param inOrientation EXIF orientation
+     * @param inFlags derivative status flags
+     * @param inHash content hash of the original
+     */
+    private Entry(final String inName, final long inLength,
+      final long inLastModified, final int[] inDimensions,
+      final int inOrientation, final int inFlags, final long inHash) {
+      name = inName;
+      length = inLength;
+      lastModified = inLastModified;
+      dimensions = inDimensions;
+      orientation = inOrientation;
+      flags = inFlags;
+      hash = inHash;
+    }
+
+    /**
+     * Copy the entry for an original whose contents are unchanged but whose
+     * size or modification time moved.
+     * @param image the image, with length and modification time set
+     * @return the updated entry
+     */
+    public Entry withAttributes(final ImageInfo image) {
+      return new Entry(name, image.getLength(), image.getLastModified(),
+        dimensions, orientation, flags, hash);
+    }
+
+    /**
+     * Read an entry.
+     * @param in the stream
+     * @return the entry
+     * @throws IOException on a truncated stream
+     */
+    static Entry read(final DataInputStream in) throws IOException {
+      final String name = in.readUTF();
+      final long length = in.readLong();
+      final long lastModified = in.readLong();
+      final int[] dimensions = new int[8];
+      for (int i = 0; i < dimensions.length; i++) {
+        dimensions[i] = in.readInt();
+      }
+      final int orientation = in.readByte();
+      final int flags = in.readByte();
+      final long hash = in.readLong();
+      return new Entry(name, length, lastModified, dimensions, orientation,
+        flags, hash);
+    }
+
+    /**
+     * Write an entry.
+     * @param out the stream
+     * @throws IOException never for a byte array stream
+     */
+    void write(final DataOutputStream out) throws IOException {
+      out.writeUTF(name);
+      out.writeLong(length);
+      out.writeLong(lastModified);
+      for (int dimension : dimensions) {
+        out.writeInt(dimension);
+      }
+      out.writeByte(orientation);
+      out.writeByte(flags);
+      out.writeLong(hash);
+    }
+
+    /**
+     * Check the entry describes the current version of an image.
+     * @param image the image, with length and modification time set
+     * @return true if the original has not changed
+     */
+    public boolean matches(final ImageInfo image) {
+      return length == image.getLength()
+        && lastModified == image.getLastModified();
+    }
+
+    /**
+     * @param flag one of the derivative status flags
+     * @return true if the flag is set
+     */
+    public boolean hasFlag(final int flag) {
+      return (flags & flag) != 0;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public int getWidth() {
+      return dimensions[0];
+    }
+
+    public int getHeight() {
+      return dimensions[1];
+    }
+
+    public int getPreviewWidth() {
+      return dimensions[2];
+    }
+
+    public int getPreviewHeight() {
+      return dimensions[3];
+    }
+
+    public int getThumbnailWidth() {
+      return dimensions[4];
+    }
+
+    public int getThumbnailHeight() {
+      return dimensions[5];
+    }
+
+    public int getFeedWidth() {
+      return dimensions[6];
+    }
+
+    public int getFeedHeight() {
+      return dimensions[7];
+    }
+
+    public int getOrientation() {
+      return orientation;
+    }
+
+    public int getFlags() {
+      return flags;
+    }
+
+    public long getHash() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      final Entry e = (Entry) o;
+      return name.equals(e.name) && length == e.length
+        && lastModified == e.lastModified
+        && Arrays.equals(dimensions, e.dimensions)
+        && orientation == e.orientation && flags == e.flags
+        && hash == e.hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return name.hashCode() * 31 + (int) lastModified;
+    }
+
+    /**
+     * @param info a derivative image info, may be null
+     * @return its width or 0
+     */
+    private static int width(final ImageInfo info) {
+      return info == null ? 0 : info.getWidth();
+    }
+
+    /**
+     * @param info a derivative image info, may be null
+     * @return its height or 0
+     */
+    private static int height(final ImageInfo info) {
+      return info == null ? 0 : info.getHeight();
+    }
+  }
+}
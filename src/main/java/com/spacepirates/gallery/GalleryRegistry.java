@@ -0,0 +1,428 @@
+/*
+ * GalleryRegistry.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import com.spacepirates.swing.chooser.ImageNameFilter;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Process wide registry of built ImageGallery instances. Building a gallery
+ * lists the image directory and stats every derivative, so the result is
+ * kept here and handed out again as long as the image directory has not
+ * changed. The registry is bounded both by the number of galleries and by
+ * the total number of images held; the least recently used galleries are
+ * evicted first. When watching is enabled the galleries are kept up to date
+ * by the GalleryWatcher instead of being checked on each lookup.
+ *
+ * @author scott
+ */
+public final class GalleryRegistry {
+
+  /** Logger for this class. */
+  private static final Logger LOG =
+    Logger.getLogger(GalleryRegistry.class.getName());
+  /** Default maximum number of galleries held. */
+  private static final int D_MAX_GALLERIES = 64;
+  /** Default maximum number of images held across all galleries. */
+  private static final int D_MAX_IMAGES = 50000;
+  /** The single instance. */
+  private static final GalleryRegistry INSTANCE = new GalleryRegistry();
+
+  /** Galleries in least recently used order, guarded by this. */
+  private final Map<Key, Entry> entries =
+    new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  /** Maximum number of galleries held. */
+  private int maxGalleries = D_MAX_GALLERIES;
+  /** Maximum number of images held across all galleries. */
+  private int maxImages = D_MAX_IMAGES;
+  /** Sum of the weights of all entries, guarded by this. */
+  private int totalImages = 0;
+  /** Flag to keep galleries up to date with a GalleryWatcher. */
+  private boolean watchEnabled = false;
+
+  /** Use getInstance(). */
+  private GalleryRegistry() {
+  }
+
+  /**
+   * Get the registry.
+   * @return the process wide registry
+   */
+  public static GalleryRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Get a gallery for a directory, building it only when there is no cached
+   * gallery for the same configuration or when the cached one is stale.
+   * @param baseDir full path of the image directory
+   * @param thumbs number of thumbnails per row
+   * @param feedThumbnails generate feed thumbnails if true
+   * @param useThreads use multiple threads if true
+   * @param rotateImages rotate images based on EXIF data if true
+   * @return the gallery
+   */
+  public ImageGallery getGallery(final String baseDir, final int thumbs,
+    final Boolean feedThumbnails, final Boolean useThreads,
+    final Boolean rotateImages) {
+    return getGallery(ImageGallery.builder(baseDir).thumbsPerRow(thumbs)
+      .feedThumbnails(Boolean.TRUE.equals(feedThumbnails))
+      .rotateImages(Boolean.TRUE.equals(rotateImages))
+      .useThreads(Boolean.TRUE.equals(useThreads)));
+  }
+
+  /**
+   * Get a gallery for the directory and settings of a builder, starting
+   * the builder only when there is no cached gallery for the same settings
+   * or when the cached one is stale.
+   * @param builder the configured builder, not yet started
+   * @return the gallery
+   */
+  public ImageGallery getGallery(final GalleryBuilder builder) {
+    final String baseDir = builder.getBaseDir();
+    final Key key = new Key(baseDir, builder.getSettings());
+    final Entry cached = lookup(key);
+    if (cached != null) {
+      return cached.getGallery();
+    }
+    // Build outside the lock; two requests racing for the same cold gallery
+    // both build it, but neither holds up lookups of other galleries.
+    final long lastModified = new File(baseDir).lastModified();
+    final ImageGallery gallery = builder.start().getGallery();
+    final boolean watch = isWatchEnabled();
+    register(key, new Entry(gallery, lastModified, watch));
+    if (watch) {
+      try {
+        GalleryWatcher.getInstance().watch(gallery);
+      } catch (IOException e) {
+        LOG.warning("Can not watch " + baseDir + ": " + e.getMessage());
+      }
+    }
+    return gallery;
+  }
+
+  /**
+   * Get the cached gallery for a directory without building one, e.g. to
+   * answer a conditional request before doing any gallery work.
+   * @param baseDir full path of the image directory
+   * @param thumbs number of thumbnails per row
+   * @param feedThumbnails generate feed thumbnails if true
+   * @param rotateImages rotate images based on EXIF data if true
+   * @return the gallery, or null if it is not cached or is stale
+   */
+  public ImageGallery peek(final String baseDir, final int thumbs,
+    final Boolean feedThumbnails, final Boolean rotateImages) {
+    return peek(ImageGallery.builder(baseDir).thumbsPerRow(thumbs)
+      .feedThumbnails(Boolean.TRUE.equals(feedThumbnails))
+      .rotateImages(Boolean.TRUE.equals(rotateImages)));
+  }
+
+  /**
+   * Get the cached gallery for the directory and settings of a builder
+   * without starting it.
+   * @param builder the configured builder
+   * @return the gallery, or null if it is not cached or is stale
+   */
+  public ImageGallery peek(final GalleryBuilder builder) {
+    final Entry cached =
+      lookup(new Key(builder.getBaseDir(), builder.getSettings()));
+    return cached == null ? null : cached.getGallery();
+  }
+
+  /**
+   * Find a valid cached gallery. The check stats the image directory, so it
+   * runs outside the lock and lookups of other galleries do not wait for
+   * the disk.
+   * @param key the gallery configuration
+   * @return the entry or null if there is none or it is stale
+   */
+  private Entry lookup(final Key key) {
+    final Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    if (entry == null || entry.isCurrent()) {
+      return entry;
+    }
+    synchronized (this) {
+      // unless another request registered a new gallery in the meantime
+      if (entries.get(key) == entry) {
+        remove(key);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Add a gallery, evicting least recently used galleries as needed.
+   * @param key the gallery configuration
+   * @param entry the entry to register
+   */
+  private synchronized void register(final Key key, final Entry entry) {
+    remove(key);
+    entries.put(key, entry);
+    totalImages += entry.getWeight();
+    final Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+    while ((entries.size() > maxGalleries || totalImages > maxImages)
+      && entries.size() > 1 && it.hasNext()) {
+      final Map.Entry<Key, Entry> eldest = it.next();
+      if (eldest.getValue() != entry) {
+        totalImages -= eldest.getValue().getWeight();
+        it.remove();
+        eldest.getValue().discard();
+        LOG.fine("Evicted gallery: ".concat(eldest.getKey().baseDir));
+      }
+    }
+  }
+
+  /**
+   * Remove a gallery.
+   * @param key the gallery configuration
+   */
+  private synchronized void remove(final Key key) {
+    final Entry old = entries.remove(key);
+    if (old != null) {
+      totalImages -= old.getWeight();
+      old.discard();
+    }
+  }
+
+  /**
+   * Drop all galleries built for a directory, e.g. after it was edited.
+   * @param baseDir full path of the image directory
+   */
+  public synchronized void invalidate(final String baseDir) {
+    final Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<Key, Entry> entry = it.next();
+      if (entry.getKey().baseDir.equals(baseDir)) {
+        totalImages -= entry.getValue().getWeight();
+        it.remove();
+        entry.getValue().discard();
+      }
+    }
+  }
+
+  /** Drop all galleries. */
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      entry.discard();
+    }
+    entries.clear();
+    totalImages = 0;
+  }
+
+  /**
+   * @return the number of galleries held
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the maxGalleries
+   */
+  public synchronized int getMaxGalleries() {
+    return maxGalleries;
+  }
+
+  /**
+   * @param inMaxGalleries the maxGalleries to set
+   */
+  public synchronized void setMaxGalleries(final int inMaxGalleries) {
+    this.maxGalleries = inMaxGalleries;
+  }
+
+  /**
+   * @return the maxImages
+   */
+  public synchronized int getMaxImages() {
+    return maxImages;
+  }
+
+  /**
+   * @param inMaxImages the maxImages to set
+   */
+  public synchronized void setMaxImages(final int inMaxImages) {
+    this.maxImages = inMaxImages;
+  }
+
+  /**
+   * @return the watchEnabled
+   */
+  public synchronized boolean isWatchEnabled() {
+    return watchEnabled;
+  }
+
+  /**
+   * @param inWatchEnabled the watchEnabled to set
+   */
+  public synchronized void setWatchEnabled(final boolean inWatchEnabled) {
+    this.watchEnabled = inWatchEnabled;
+  }
+
+  /**
+   * Identifies a gallery by its image directory and the configuration
+   * which changes what is built for it.
+   */
+  private static final class Key {
+
+    /** Full path of the image directory. */
+    private final String baseDir;
+    /** The builder settings, see GalleryBuilder.getSettings(). */
+    private final List<Object> settings;
+
+    /**
+     * Create a key.
+     * @param inBaseDir full path of the image directory
+     * @param inSettings the builder settings
+     */
+    Key(final String inBaseDir, final List<Object> inSettings) {
+      baseDir = inBaseDir;
+      settings = inSettings;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key k = (Key) o;
+      return baseDir.equals(k.baseDir) && settings.equals(k.settings);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * baseDir.hashCode() + settings.hashCode();
+    }
+  }
+
+  /**
+   * A built gallery plus what is needed to check it is still current.
+   */
+  private static final class Entry {
+
+    /** The gallery. */
+    private final ImageGallery gallery;
+    /** Modification time of the image directory when last validated. */
+    private volatile long lastModified;
+    /** Number of images in the gallery, used as the eviction weight. */
+    private final int weight;
+    /** Set if the gallery was handed to the watcher. */
+    private final boolean watched;
+
+    /**
+     * Create an entry.
+     * @param inGallery the gallery
+     * @param inLastModified image directory modification time
+     * @param inWatched true if the gallery is handed to the watcher
+     */
+    Entry(final ImageGallery inGallery, final long inLastModified,
+      final boolean inWatched) {
+      gallery = inGallery;
+      lastModified = inLastModified;
+      weight = Math.max(1, inGallery.getImages().size());
+      watched = inWatched;
+    }
+
+    /**
+     * Adding, removing or renaming an image changes the modification time of
+     * its directory. So does writing the feed or creating the derivative
+     * directories, so when the time has moved the image names are listed
+     * once and compared with the gallery before it is thrown away.
+     * @return true if the gallery still matches the file system
+     */
+    boolean isCurrent() {
+      if (!new File(gallery.getThumbDirPath()).isDirectory()
+        || !new File(gallery.getPreviewDirPath()).isDirectory()
+        || (gallery.getIsFeed()
+          && !new File(gallery.getFeedDirPath()).isDirectory())) {
+        return false;
+      }
+      if (watched && isWatched(gallery)) {
+        return true;
+      }
+      final File dir = new File(gallery.getImageDirPath());
+      final long modified = dir.lastModified();
+      if (modified == lastModified) {
+        return true;
+      }
+      final String[] names = dir.list(new ImageNameFilter());
+      if (names == null) {
+        return false;
+      }
+      final Set<String> known = new HashSet<String>();
+      for (ImageInfo image : gallery.getImages().values()) {
+        if (image.getFile() != null) {
+          known.add(image.getFilename());
+        }
+      }
+      if (known.equals(new HashSet<String>(Arrays.asList(names)))) {
+        lastModified = modified;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Stop keeping the gallery up to date, if it was being watched, and drop
+     * derivative work nobody will render any more.
+     */
+    void discard() {
+      final GalleryBuild build = gallery.getBuild();
+      if (build != null && !build.isDone()) {
+        build.cancel();
+      }
+      if (watched) {
+        try {
+          GalleryWatcher.getInstance().unwatch(gallery);
+        } catch (IOException e) {
+          // never started
+        }
+      }
+    }
+
+    /**
+     * @param inGallery a gallery
+     * @return true if the watcher is keeping it up to date
+     */
+    private static boolean isWatched(final ImageGallery inGallery) {
+      try {
+        return GalleryWatcher.getInstance().isWatched(inGallery);
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    ImageGallery getGallery() {
+      return gallery;
+    }
+
+    int getWeight() {
+      return weight;
+    }
+  }
+}
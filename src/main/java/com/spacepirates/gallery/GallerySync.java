@@ -0,0 +1,199 @@
+/*
+ * GallerySync.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Compares the images of a gallery with the state recorded in its manifest
+ * and sorts them into added, changed, removed and unchanged images, so that
+ * only the difference has to be processed. An image is unchanged if its size
+ * and modification time match the manifest. With content hashing enabled an
+ * image whose size or time moved but whose contents did not, e.g. after a
+ * copy which did not preserve times, is also unchanged.
+ *
+ * @author scott
+ */
+public class GallerySync {
+
+  /** Size of the buffer used for hashing. */
+  private static final int BUFFER = 64 * 1024;
+
+  /** The state from the last run. */
+  private final GalleryManifest manifest;
+  /** Flag to compare contents when size or time differ. */
+  private final boolean contentHash;
+  /** Images not in the manifest. */
+  private final List<ImageInfo> added = new ArrayList<ImageInfo>();
+  /** Images which differ from the manifest. */
+  private final List<ImageInfo> changed = new ArrayList<ImageInfo>();
+  /** Images which match the manifest. */
+  private final List<ImageInfo> unchanged = new ArrayList<ImageInfo>();
+  /** Names in the manifest which are no longer images. */
+  private final List<String> removed = new ArrayList<String>();
+
+  /**
+   * Create a sync for a gallery.
+   * @param inManifest the manifest with the last known state
+   * @param inContentHash compare contents when size or time differ
+   */
+  public GallerySync(final GalleryManifest inManifest,
+    final boolean inContentHash) {
+    manifest = inManifest;
+    contentHash = inContentHash;
+  }
+
+  /**
+   * Sort images into added, changed and unchanged. Each image costs one stat
+   * and no other I/O unless content hashing is needed to decide.
+   * @param images the images to check, blanks are ignored
+   * @param complete true if images holds every image of the gallery, so
+   * that manifest entries without an image are known to be removed
+   * @param errors receives a message for each image which can't be read
+   */
+  public void diff(final Collection<ImageInfo> images, final boolean complete,
+    final List<String> errors) {
+    final Set<String> names = new HashSet<String>();
+    for (ImageInfo image : images) {
+      if (image.getFile() == null) {
+        continue;
+      }
+      names.add(image.getFilename());
+      try {
+        readFileAttributes(image);
+      } catch (IOException e) {
+        errors.add(e.getMessage());
+        continue;
+      }
+      final GalleryManifest.Entry entry = manifest.get(image.getFilename());
+      if (entry == null) {
+        added.add(image);
+      } else if (entry.matches(image)) {
+        unchanged.add(image);
+      } else if (contentHash && entry.getHash() != 0
+        && entry.getHash() == hash(image.getFile())) {
+        // only the time stamp moved, keep the derivatives
+        manifest.put(entry.withAttributes(image));
+        unchanged.add(image);
+      } else {
+        changed.add(image);
+      }
+    }
+    if (complete) {
+      for (String name : manifest.getNames()) {
+        if (!names.contains(name)) {
+          removed.add(name);
+        }
+      }
+    }
+  }
+
+  /**
+   * Describe the difference in the gallery messages.
+   * @param gallery the gallery
+   */
+  public void report(final ImageGallery gallery) {
+    gallery.addMessage("Sync: " + added.size() + " added, " + changed.size()
+      + " changed, " + removed.size() + " removed, " + unchanged.size()
+      + " unchanged");
+    for (ImageInfo image : added) {
+      gallery.addMessage("Added image: " + image.getFilename());
+    }
+    for (ImageInfo image : changed) {
+      gallery.addMessage("Changed image: " + image.getFilename());
+    }
+    for (String name : removed) {
+      gallery.addMessage("Removed image: " + name);
+    }
+  }
+
+  /**
+   * @return true if nothing was added, changed or removed
+   */
+  public boolean isEmpty() {
+    return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+  }
+
+  /**
+   * Read the size and modification time of an image with a single stat.
+   * @param image the image
+   * @throws IOException if the file can not be read
+   */
+  public static void readFileAttributes(final ImageInfo image)
+    throws IOException {
+    final BasicFileAttributes attributes = Files.readAttributes(
+      image.getFile().toPath(), BasicFileAttributes.class);
+    image.setLength(attributes.size());
+    image.setLastModified(attributes.lastModifiedTime().toMillis());
+  }
+
+  /**
+   * Compute a checksum of the contents of a file.
+   * @param file the file
+   * @return the checksum, never 0, or 0 if the file can not be read
+   */
+  public static long hash(final File file) {
+    final CRC32 crc = new CRC32();
+    try {
+      final FileInputStream in = new FileInputStream(file);
+      try {
+        final FileChannel channel = in.getChannel();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+        while (channel.read(buffer) > 0) {
+          buffer.flip();
+          crc.update(buffer);
+          buffer.clear();
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return 0;
+    }
+    // fold in the length, and keep 0 to mean "no hash"
+    final long value = crc.getValue() << 32 | (file.length() & 0xffffffffL);
+    return value == 0 ? 1 : value;
+  }
+
+  public List<ImageInfo> getAdded() {
+    return added;
+  }
+
+  public List<ImageInfo> getChanged() {
+    return changed;
+  }
+
+  public List<ImageInfo> getUnchanged() {
+    return unchanged;
+  }
+
+  public List<String> getRemoved() {
+    return removed;
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * GalleryWatcher.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import com.spacepirates.swing.chooser.ImageNameFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Watches the image directories of registered galleries and keeps them up to
+ * date as images are created, modified and deleted, so that a change does not
+ * require the whole directory to be scanned again. Events for a file are
+ * collected until the file has been quiet for a short while, which lets an
+ * upload finish before its derivatives are made. Derivative work is staged on
+ * the GalleryExecutor as background work, never on the watcher thread, and
+ * the updates of one file never overlap.
+ *
+ * @author scott
+ */
+public final class GalleryWatcher implements Runnable {
+
+  /** Logger for this class. */
+  private static final Logger LOG =
+    Logger.getLogger(GalleryWatcher.class.getName());
+  /** Default time in ms a file must be quiet before it is processed. */
+  private static final long D_SETTLE = 1500;
+  /** Time in ms to wait for events before checking pending files. */
+  private static final long POLL = 250;
+  /** Time in ms shutdown() waits for the watcher thread. */
+  private static final long STOP_WAIT = 1000;
+  /** The single instance, created on first use. */
+  private static GalleryWatcher instance;
+
+  /** The watch service. */
+  private final WatchService service;
+  /** Galleries by the watch key of their image directory. */
+  private final Map<WatchKey, Set<ImageGallery>> galleries =
+    new ConcurrentHashMap<WatchKey, Set<ImageGallery>>();
+  /** Watch keys by directory. */
+  private final Map<Path, WatchKey> keys =
+    new ConcurrentHashMap<Path, WatchKey>();
+  /** Changed files by the time of their last event. */
+  private final Map<Path, Long> pending = new ConcurrentHashMap<Path, Long>();
+  /** Files whose update is running. */
+  private final Set<Path> running =
+    Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+  /** The thread waiting for events. */
+  private final Thread thread;
+  /** ImageNameFilter for selecting only images. */
+  private final ImageNameFilter inf = new ImageNameFilter();
+  /** Time in ms a file must be quiet before it is processed. */
+  private volatile long settle = D_SETTLE;
+
+  /**
+   * Create the watcher and start its thread.
+   * @throws IOException if the file system can not be watched
+   */
+  private GalleryWatcher() throws IOException {
+    service = FileSystems.getDefault().newWatchService();
+    thread = new Thread(this, "lazygallery-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Get the watcher, starting it on first use.
+   * @return the watcher
+   * @throws IOException if the file system can not be watched
+   */
+  public static synchronized GalleryWatcher getInstance() throws IOException {
+    if (instance == null) {
+      instance = new GalleryWatcher();
+    }
+    return instance;
+  }
+
+  /**
+   * Stop the watcher, e.g. when the web application is stopped: close the
+   * watch service and end its thread. Pending changes are dropped, updates
+   * already running finish on the GalleryExecutor. A later getInstance()
+   * starts a new watcher.
+   */
+  public static void shutdown() {
+    final GalleryWatcher stopping;
+    synchronized (GalleryWatcher.class) {
+      stopping = instance;
+      instance = null;
+    }
+    if (stopping != null) {
+      stopping.stop();
+    }
+  }
+
+  /**
+   * Close the watch service and wait for the watcher thread to end.
+   */
+  private void stop() {
+    try {
+      service.close();
+    } catch (IOException e) {
+      LOG.warning("Can not close the watch service: " + e.getMessage());
+    }
+    thread.interrupt();
+    try {
+      thread.join(STOP_WAIT);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      galleries.clear();
+      keys.clear();
+    }
+    pending.clear();
+  }
+
+  /**
+   * Start keeping a gallery up to date.
+   * @param gallery the gallery
+   * @throws IOException if its image directory can not be watched
+   */
+  public synchronized void watch(final ImageGallery gallery)
+    throws IOException {
+    final Path dir = Paths.get(gallery.getImageDirPath());
+    final WatchKey key = dir.register(service,
+      StandardWatchEventKinds.ENTRY_CREATE,
+      StandardWatchEventKinds.ENTRY_MODIFY,
+      StandardWatchEventKinds.ENTRY_DELETE);
+    keys.put(dir, key);
+    Set<ImageGallery> watched = galleries.get(key);
+    if (watched == null) {
+      watched = new CopyOnWriteArraySet<ImageGallery>();
+      galleries.put(key, watched);
+    }
+    watched.add(gallery);
+  }
+
+  /**
+   * Stop keeping a gallery up to date.
+   * @param gallery the gallery
+   */
+  public synchronized void unwatch(final ImageGallery gallery) {
+    final Path dir = Paths.get(gallery.getImageDirPath());
+    final WatchKey key = keys.get(dir);
+    if (key == null) {
+      return;
+    }
+    final Set<ImageGallery> watched = galleries.get(key);
+    if (watched != null) {
+      watched.remove(gallery);
+      if (watched.isEmpty()) {
+        galleries.remove(key);
+        keys.remove(dir);
+        key.cancel();
+      }
+    }
+  }
+
+  /**
+   * @param gallery the gallery
+   * @return true if the gallery is being kept up to date
+   */
+  public boolean isWatched(final ImageGallery gallery) {
+    final WatchKey key = keys.get(Paths.get(gallery.getImageDirPath()));
+    if (key == null || !key.isValid()) {
+      return false;
+    }
+    final Set<ImageGallery> watched = galleries.get(key);
+    return watched != null && watched.contains(gallery);
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        final WatchKey key = service.poll(POLL, TimeUnit.MILLISECONDS);
+        if (key != null) {
+          collect(key);
+        }
+        dispatch();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException e) {
+      // shut down
+    }
+  }
+
+  /**
+   * Note the files changed by the events of a watch key.
+   * @param key the signalled key
+   */
+  private void collect(final WatchKey key) {
+    final Path dir = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // events were lost, the galleries have to be rebuilt from scratch
+        drop(key, dir);
+        return;
+      }
+      final Path name = (Path) event.context();
+      if (inf.accept(dir.toFile(), name.toString())) {
+        pending.put(dir.resolve(name), System.currentTimeMillis());
+      }
+    }
+    if (!key.reset()) {
+      // the directory went away
+      drop(key, dir);
+    }
+  }
+
+  /**
+   * Queue the update of every pending file which has been quiet long enough.
+   * A file whose previous update is still running stays pending until it
+   * is done, so its updates are applied in order.
+   */
+  private void dispatch() {
+    final long due = System.currentTimeMillis() - settle;
+    final Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<Path, Long> entry = it.next();
+      final Path file = entry.getKey();
+      if (entry.getValue() > due || running.contains(file)) {
+        continue;
+      }
+      it.remove();
+      final WatchKey key = keys.get(file.getParent());
+      final Set<ImageGallery> watched = key == null ? null : galleries.get(key);
+      if (watched == null) {
+        continue;
+      }
+      final List<ImageGallery> targets = new ArrayList<ImageGallery>(watched);
+      if (targets.isEmpty()) {
+        continue;
+      }
+      running.add(file);
+      final AtomicInteger remaining = new AtomicInteger(targets.size());
+      final Runnable updated = new Runnable() {
+        @Override
+        public void run() {
+          if (remaining.decrementAndGet() == 0) {
+            running.remove(file);
+          }
+        }
+      };
+      for (ImageGallery gallery : targets) {
+        gallery.submitUpdate(file.toFile(), updated);
+      }
+    }
+  }
+
+  /**
+   * Stop watching a directory and make the registry rebuild its galleries.
+   * @param key the watch key
+   * @param dir the directory
+   */
+  private void drop(final WatchKey key, final Path dir) {
+    final Set<ImageGallery> watched;
+    synchronized (this) {
+      key.cancel();
+      watched = galleries.remove(key);
+      keys.remove(dir);
+    }
+    if (watched != null) {
+      for (ImageGallery gallery : watched) {
+        GalleryRegistry.getInstance().invalidate(gallery.getImageDirPath());
+      }
+    }
+  }
+
+  /**
+   * @return the time in ms a file must be quiet before it is processed
+   */
+  public long getSettle() {
+    return settle;
+  }
+
+  /**
+   * @param inSettle the time in ms a file must be quiet before it is processed
+   */
+  public void setSettle(final long inSettle) {
+    this.settle = inSettle;
+  }
+}
@@ -14,15 +14,26 @@
  */
 package com.spacepirates.gallery;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -32,8 +43,57 @@ import javax.servlet.http.HttpServletRequest;
 public class HttpImageGallery implements java.io.Serializable {
   /** Serialization UUID. */
   private static final long serialVersionUID = -6845834488748625437L;
+  /** Logger for this class. */
+  private static final Logger LOG =
+    Logger.getLogger(HttpImageGallery.class.getName());
   /** File separator characters. */
   public static final String FILE_SEP = System.getProperty("file.separator");
+  /** Encoding of the static HTML page. */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /** Most static HTML pages whose last contents are remembered. */
+  private static final int MAX_HTML_FILES = 256;
+  /**
+   * The static HTML pages last written, by file path, least recently used
+   * first. Guarded by itself.
+   */
+  private static final Map<String, HtmlFile> HTML_FILES =
+    new LinkedHashMap<String, HtmlFile>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+        final Map.Entry<String, HtmlFile> eldest) {
+        return size() > MAX_HTML_FILES;
+      }
+    };
+  /**
+   * Locks for writing static HTML pages, picked by the hash of the file
+   * path. They are not kept in HTML_FILES, whose records can be evicted
+   * while a page is being written.
+   */
+  private static final Object[] HTML_LOCKS = new Object[32];
+
+  static {
+    for (int i = 0; i < HTML_LOCKS.length; i++) {
+      HTML_LOCKS[i] = new Object();
+    }
+  }
+  /** Most entity tags whose first use is remembered. */
+  private static final int MAX_ETAG_TIMES = 1024;
+  /**
+   * Time each entity tag was first handed out, least recently used first.
+   * Guarded by itself.
+   */
+  private static final Map<String, Long> ETAG_TIMES =
+    new LinkedHashMap<String, Long>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+        final Map.Entry<String, Long> eldest) {
+        return size() > MAX_ETAG_TIMES;
+      }
+    };
 
   /**
    * JSPWiki property or servlet context init parameter setting file system path
@@ -41,6 +101,38 @@ public class HttpImageGallery implements java.io.Serializable {
    */
   public static final String P_DOCROOT = "root";
 
+  /**
+   * Servlet context init parameter, when set to true galleries are kept up
+   * to date by watching their directories instead of checking on each hit.
+   */
+  public static final String P_WATCH = "watch";
+
+  /**
+   * Servlet context init parameter, megabytes of heap decoded images may
+   * use at once, by default a quarter of the maximum heap.
+   */
+  public static final String P_DECODE_BUDGET = "decodeBudget";
+
+  /**
+   * Servlet context init parameter, largest number of pixels an image may
+   * have before it is refused as a decompression bomb.
+   */
+  public static final String P_MAX_PIXELS = "maxPixels";
+
+  /**
+   * Servlet context init parameter, most images whose derivatives are made
+   * at once across all galleries, by default four per CPU. Read by the
+   * GalleryContextListener.
+   */
+  public static final String P_MAX_CONCURRENT = "maxConcurrentImages";
+
+  /**
+   * Servlet context init parameter, default render budget in ms: how long a
+   * request waits for the derivatives of a gallery before it is rendered
+   * with placeholders. Off when not set or negative, see setRenderBudget().
+   */
+  public static final String P_RENDER_BUDGET = "renderBudget";
+
   /**
    * The default value for the file portion of the base URL, of the
    * root directory  of the images.
@@ -51,6 +143,9 @@ public class HttpImageGallery implements java.io.Serializable {
   /** Default number of thumbnails in one row of a table display. */
   private static final Integer D_THUMBS = 6;
 
+  /** Default render budget, none: the gallery is built as threads says. */
+  private static final long D_RENDER_BUDGET = -1;
+
   /** The root directory in the URL to the images. */
   private String root = D_IMAGES;
   /** The number of thumbnails per row when rendered in a table. */
@@ -64,6 +159,11 @@ public class HttpImageGallery implements java.io.Serializable {
   private String exifIcon = "exif.png";
   /** File name of the icon for the link to the full size picture. */
   private String printIcon = "print.png";
+  /**
+   * File name of the icon shown for a picture still being processed, see
+   * examples/jsp/images.
+   */
+  private String placeholderIcon = "pending.png";
   /** Caption to render under the gallery. */
   private String caption;
   /** Directory name for images above P_DOCROOT. */
@@ -82,6 +182,8 @@ public class HttpImageGallery implements java.io.Serializable {
   private String htmlFileName = "index.html";
   /** Flag to enable HTML output file. */
   private Boolean html = false;
+  /** Flag to write a gzip compressed copy of the HTML output file. */
+  private Boolean gzipHtml = false;
   /** Gallery description file name.*/
   private String descriptionFileName = "readme.html";
   /** Gallery description. */
@@ -93,6 +195,8 @@ public class HttpImageGallery implements java.io.Serializable {
   private String title;
   /** Flag when set to true, generate media RSS. */
   private Boolean feed = false;
+  /** Maximum number of images in the RSS feed, 0 for all. */
+  private int feedItems = 0;
   /** The servlet request. */
   private HttpServletRequest request;
   /** The link to the jsp/jspwiki page which the gallery resides in. */
@@ -101,10 +205,22 @@ public class HttpImageGallery implements java.io.Serializable {
   private String lang = "en-us";
   /** Flag when set to true, use multiple threads for image processing. */
   private Boolean threads = false;
+  /** Render budget in ms, null for the context parameter or default. */
+  private Long renderBudget;
   /** Flag, when set to true attempt to rotate pictures portrait size.*/
   private Boolean rotate = false;
+  /** Flag to make thumbnails from the thumbnail embedded in EXIF data. */
+  private Boolean exifThumbnails = false;
+  /** Flag to compare contents of images whose size or time changed. */
+  private Boolean contentHash = false;
+  /** Name of the ScalingMethod for all derivatives, null for defaults. */
+  private String scaling;
+  /** Encoder quality for all derivatives, null for the default. */
+  private Float quality;
   /** The ImageGallery to be rendered. */
   private ImageGallery imageGallery;
+  /** Full path of the image directory, set by configure(). */
+  private String imageDirPath;
 
   /**
    * Initialize the gallery, getting properties from the HttpServletRequest
@@ -113,6 +229,18 @@ public class HttpImageGallery implements java.io.Serializable {
    */
   public final void init(final HttpServletRequest inRequest) {
     // JSPWiki sometimes does NOT have an HttpRequest...
+    if (inRequest != null) {
+      configure(inRequest);
+      load();
+    }
+  }
+
+  /**
+   * Work out the gallery location and settings from the HttpServletRequest,
+   * without touching the gallery itself.
+   * @param inRequest an HttpServletRequest
+   */
+  public final void configure(final HttpServletRequest inRequest) {
     if (inRequest != null) {
       setRequest(inRequest); // save reference for later
       setContextPath(inRequest.getContextPath());
@@ -160,19 +288,237 @@ public class HttpImageGallery implements java.io.Serializable {
         this.setIconDir(D_IMAGES);
       }
 
-      setImageGallery(new ImageGallery(sbImageDir.toString(),
-        this.getThumbsPerRow(), feed, getUseThreads()));
-      getImageGallery().setRotateImages(rotate);
+      if (Boolean.parseBoolean(inRequest.getSession().getServletContext()
+        .getInitParameter(P_WATCH))) {
+        GalleryRegistry.getInstance().setWatchEnabled(true);
+      }
+      configureDecodeBudget(inRequest.getSession().getServletContext());
+      configureRenderBudget(inRequest.getSession().getServletContext());
+      imageDirPath = sbImageDir.toString();
+    }
+  }
+
+  /**
+   * Apply the decode budget init parameters of the web application.
+   * @param context the servlet context
+   */
+  private void configureDecodeBudget(final ServletContext context) {
+    final DecodeBudget budget = DecodeBudget.getInstance();
+    try {
+      final String megabytes = context.getInitParameter(P_DECODE_BUDGET);
+      if (megabytes != null) {
+        budget.setCapacity(Long.parseLong(megabytes.trim()) * 1024 * 1024);
+      }
+      final String pixels = context.getInitParameter(P_MAX_PIXELS);
+      if (pixels != null) {
+        budget.setMaxPixels(Long.parseLong(pixels.trim()));
+      }
+    } catch (NumberFormatException e) {
+      LOG.warning("Bad decode budget parameter: " + e.getMessage());
+    }
+  }
 
-      this.readDescription();
-      if (this.getCaption() == null) {
-        this.setCaption(getDescription());
+  /**
+   * Apply the render budget init parameter of the web application, unless
+   * the budget was set on this gallery.
+   * @param context the servlet context
+   */
+  private void configureRenderBudget(final ServletContext context) {
+    final String millis = context.getInitParameter(P_RENDER_BUDGET);
+    if (renderBudget == null && millis != null) {
+      try {
+        renderBudget = Long.parseLong(millis.trim());
+      } catch (NumberFormatException e) {
+        LOG.warning("Bad render budget parameter: " + e.getMessage());
       }
     }
   }
 
-  @Override
-  public final String toString() {
+  /**
+   * Get the gallery configured by configure(), building it if needed, and
+   * read its description. With a render budget the derivatives are made in
+   * the background and this only waits for them until the budget is spent;
+   * images not done by then are rendered as placeholders.
+   */
+  public final void load() {
+    final long budget = getRenderBudget();
+    final long deadline = System.currentTimeMillis() + budget;
+    setImageGallery(GalleryRegistry.getInstance().getGallery(
+      newBuilder().useThreads(getUseThreads() || budget >= 0)));
+    // someone is waiting for this gallery, its derivatives go first
+    getImageGallery().prioritize();
+    if (budget > 0) {
+      awaitBuild(deadline - System.currentTimeMillis());
+    }
+
+    this.readDescription();
+    if (this.getCaption() == null) {
+      this.setCaption(getDescription());
+    }
+  }
+
+  /**
+   * Wait for the derivatives of the gallery.
+   * @param millis how long to wait at most
+   */
+  private void awaitBuild(final long millis) {
+    final GalleryBuild build = getImageGallery().getBuild();
+    if (build == null || build.isDone() || millis <= 0) {
+      return;
+    }
+    try {
+      build.getFuture().get(millis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // rendered with placeholders, the rest is made in the background
+    } catch (CancellationException e) {
+      // rendered as far as it got
+    } catch (ExecutionException e) {
+      getImageGallery().addMessage(e.getCause().toString());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @param inGallery the gallery
+   * @return true while derivatives of the gallery are still being made, so
+   * its page has placeholders
+   */
+  private static boolean isBuilding(final ImageGallery inGallery) {
+    final GalleryBuild build = inGallery.getBuild();
+    return build != null && !build.isDone();
+  }
+
+  /**
+   * Compute a strong entity tag for the page configured by configure(). It
+   * is made from the gallery version and the render options, so it changes
+   * whenever the rendered gallery would. Only a gallery which is already
+   * built and current has a version, so no gallery work is done here.
+   * @return the quoted entity tag, or null if the gallery is not built yet,
+   * still has placeholders, or the output is not cacheable
+   */
+  public final String getETag() {
+    final ImageGallery cached = peekImageGallery();
+    if (cached == null || getDebug() || isBuilding(cached)) {
+      return null;
+    }
+    final StringBuilder options = new StringBuilder(getRenderKey());
+    options.append('\0').append(cached.getImageDirPath());
+    options.append('\0').append(feed);
+    options.append('\0').append(getMakeHtmlFile());
+    options.append('\0').append(getHtmlFileName());
+    options.append('\0').append(getImageRootDir());
+    options.append('\0').append(getSiteURL());
+    for (File file : getDescriptionFiles(cached)) {
+      options.append('\0').append(file.lastModified());
+      options.append('/').append(file.length());
+    }
+    return "\"" + Long.toHexString(cached.getVersion()) + '-'
+      + Integer.toHexString(options.toString().hashCode()) + "\"";
+  }
+
+  /**
+   * Get the time the page configured by configure() last changed: the time
+   * of the newest image, description file or change to the image directory,
+   * such as a deleted or renamed image. Changes only the entity tag sees,
+   * e.g. to the render options, count from when the tag was first handed
+   * out, so a client which only sends If-Modified-Since never gets a 304
+   * for an older page.
+   * @return the time in ms, or -1 if the gallery is not built yet, still
+   * has placeholders, or the output is not cacheable
+   */
+  public final long getLastModified() {
+    return getLastModified(getETag());
+  }
+
+  /**
+   * Get the time the page last changed, for a page whose entity tag covers
+   * more than the gallery, e.g. the attributes of a tag.
+   * @param etag the entity tag of the page, derived from getETag()
+   * @return the time in ms, or -1 if etag is null or the gallery is not
+   * built yet
+   */
+  public final long getLastModified(final String etag) {
+    final ImageGallery cached = peekImageGallery();
+    if (cached == null || etag == null) {
+      return -1;
+    }
+    long newest = Math.max(cached.getLastModified(),
+      new File(cached.getImageDirPath()).lastModified());
+    for (File file : getDescriptionFiles(cached)) {
+      newest = Math.max(newest, file.lastModified());
+    }
+    synchronized (ETAG_TIMES) {
+      Long first = ETAG_TIMES.get(etag);
+      if (first == null) {
+        first = System.currentTimeMillis();
+        ETAG_TIMES.put(etag, first);
+      }
+      newest = Math.max(newest, first);
+    }
+    return newest;
+  }
+
+  /**
+   * @return the current gallery configured by configure() if it is already
+   * built, otherwise null
+   */
+  private ImageGallery peekImageGallery() {
+    if (imageDirPath == null) {
+      return null;
+    }
+    return GalleryRegistry.getInstance().peek(newBuilder());
+  }
+
+  /**
+   * @return a builder for the gallery configured by configure(), with the
+   * settings of this gallery
+   */
+  private GalleryBuilder newBuilder() {
+    final GalleryBuilder builder = ImageGallery.builder(imageDirPath)
+      .thumbsPerRow(this.getThumbsPerRow())
+      .feedThumbnails(Boolean.TRUE.equals(feed))
+      .rotateImages(Boolean.TRUE.equals(getRotateImages()))
+      .exifThumbnails(Boolean.TRUE.equals(exifThumbnails))
+      .contentHash(Boolean.TRUE.equals(contentHash));
+    if (scaling != null) {
+      try {
+        final ScalingMethod method =
+          ScalingMethod.valueOf(scaling.trim().toUpperCase(Locale.ENGLISH));
+        for (DerivativeType type : DerivativeType.values()) {
+          builder.scaler(type, method);
+        }
+      } catch (IllegalArgumentException e) {
+        LOG.warning("Unknown scaling method: " + scaling);
+      }
+    }
+    if (quality != null) {
+      for (DerivativeType type : DerivativeType.values()) {
+        // only previews are big enough for progressive display to pay off
+        builder.encoderSettings(type,
+          new EncoderSettings(quality, type == DerivativeType.PREVIEW));
+      }
+    }
+    return builder;
+  }
+
+  /**
+   * @param inGallery the gallery
+   * @return the gallery and global description files
+   */
+  private File[] getDescriptionFiles(final ImageGallery inGallery) {
+    return new File[] {
+      new File(inGallery.getImageDirPath()
+        + FILE_SEP + this.getDescriptionFileName()),
+      new File(inGallery.getGalleryRootPath()
+        + FILE_SEP + this.getDescriptionFileName())};
+  }
+
+  /**
+   * Render the thumbnail table.
+   * @return the HTML for the table
+   */
+  private String renderTable() {
     final StringBuilder gallery = new StringBuilder("");
     gallery.append("<div class=\"lazygallery\">\n");
     gallery.append("  <table style=\"text-align: center;\">\n");
@@ -185,6 +531,9 @@ public class HttpImageGallery implements java.io.Serializable {
       
       if (image.getFile() == null) {
         gallery.append("      <td>&nbsp;</td>\n");
+      } else if (image.getPreviewInfo() == null) {
+        // still being processed, or its derivatives could not be made
+        renderPlaceholder(gallery, image);
       } else {
         gallery.append("      <td><a href=\"");
         if (this.getLightbox()) {
@@ -243,6 +592,77 @@ public class HttpImageGallery implements java.io.Serializable {
       }
     }
     gallery.append("  </table>\n");
+    return gallery.toString();
+  }
+
+  /**
+   * Render the cell of an image which has no preview and thumbnail yet, as
+   * the placeholder icon linked to the full size picture.
+   * @param gallery the table being rendered
+   * @param image the image
+   */
+  private void renderPlaceholder(final StringBuilder gallery,
+    final ImageInfo image) {
+    gallery.append("      <td><a href=\"");
+    gallery.append(getImageContext());
+    gallery.append(getImageGallery().getImageFileURL(image));
+    gallery.append("\"><img class=\"LGpending\" src=\"");
+    gallery.append(getContextPath());
+    gallery.append(this.getIconDir());
+    gallery.append("/");
+    gallery.append(this.getPlaceholderIcon());
+    gallery.append("\" alt=\"");
+    gallery.append(image.getFilename());
+    gallery.append("\" title=\"");
+    gallery.append(image.getFilename());
+    gallery.append("\" width=\"");
+    gallery.append(getImageGallery().getThumbnailX());
+    gallery.append("\" height=\"");
+    gallery.append(getImageGallery().getThumbnailY());
+    gallery.append("\"/></a></td>\n");
+  }
+
+  /**
+   * Build the key of the rendered table in the FragmentCache. It holds the
+   * gallery version and everything else the table markup depends on.
+   * @return the key
+   */
+  private String getFragmentKey() {
+    final StringBuilder key = new StringBuilder();
+    key.append(getImageGallery().getImageDirPath());
+    key.append('\0').append(getImageGallery().getVersion());
+    key.append('\0').append(getRenderKey());
+    return key.toString();
+  }
+
+  /**
+   * @return the render options the table markup depends on
+   */
+  private String getRenderKey() {
+    final StringBuilder key = new StringBuilder();
+    key.append(getLightbox());
+    key.append('\0').append(getThumbsPerRow());
+    key.append('\0').append(getIconDir());
+    key.append('\0').append(getContextPath());
+    key.append('\0').append(getImageContext());
+    key.append('\0').append(getImageDir());
+    key.append('\0').append(getPrintIcon());
+    key.append('\0').append(getExifIcon());
+    key.append('\0').append(getPlaceholderIcon());
+    return key.toString();
+  }
+
+  @Override
+  public final String toString() {
+    // checked first, the table then has every image the build made
+    final boolean complete = !isBuilding(getImageGallery());
+    final String key = getFragmentKey();
+    String table = FragmentCache.getInstance().get(key);
+    if (table == null) {
+      table = renderTable();
+      FragmentCache.getInstance().put(key, table);
+    }
+    final StringBuilder gallery = new StringBuilder(table);
     gallery.append(this.getCaption());
     gallery.append("\n</div>\n");
 
@@ -277,6 +697,15 @@ public class HttpImageGallery implements java.io.Serializable {
       gallery.append(getImageRootDir());
       gallery.append(getImageDir());
       gallery.append("<br/>\n");
+      final GalleryBuild build = getImageGallery().getBuild();
+      if (build != null) {
+        gallery.append("Images processed: ");
+        gallery.append(build.getCompleted());
+        gallery.append(" of ");
+        gallery.append(build.getTotal());
+        gallery.append(build.isDone() ? ", done" : ", working");
+        gallery.append("<br/>\n");
+      }
       gallery.append("Messages from ImageGallery:<br/>\n");
       for (String s : getImageGallery().getMessages()) {
         gallery.append("&nbsp;");
@@ -299,28 +728,10 @@ public class HttpImageGallery implements java.io.Serializable {
       gallery.append(new PhotoFeed(this));
     }
 
-    // FIXME: refactor into separate method
     if (getMakeHtmlFile()) {
-      final File htmlFile = new File(this.getImageGallery().getImageDirPath()
-        + ImageGallery.FILE_SEP + getHtmlFileName());
-      final StringBuilder htmlOutput = new StringBuilder();
-      htmlOutput.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">");
-      htmlOutput.append("<html>\n");
-      htmlOutput.append("<head>\n");
-      htmlOutput.append("<title>");
-      htmlOutput.append(this.getTitle());
-      htmlOutput.append("</title>");
-      htmlOutput.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />");
-      htmlOutput.append("</head>\n");
-      htmlOutput.append("<body>\n");
-      htmlOutput.append(gallery);
-      htmlOutput.append("</body>\n");
-      htmlOutput.append("</html>\n");
-      try {
-        final BufferedWriter out = new BufferedWriter(new FileWriter(htmlFile));
-        out.write(htmlOutput.toString());
-        out.close();
-      } catch (IOException e) {
+      if (complete) {
+        // never leave a page with placeholders on disk
+        writeHtmlFile(gallery);
       }
       gallery.append("<div>");
       gallery.append("<a href=\"");
@@ -360,53 +771,93 @@ public class HttpImageGallery implements java.io.Serializable {
   }
 
   /**
-   * Read in the readme.htmlOutput file if present. If not present
-   * and the global readme.htmlOutput file exists, use the global file.
+   * Write the static HTML page of the gallery, if its contents changed since
+   * it was last written. The page is compared with the digest of what was
+   * written, so a gallery page which is hit often does not turn into a
+   * stream of disk writes.
+   * @param inGallery the rendered gallery
    */
-  private void readDescription() {
-    final File dscr = new File(getImageGallery().getImageDirPath()
-      + FILE_SEP + this.getDescriptionFileName());
-    final File gdscr = new File(getImageGallery().getGalleryRootPath()
-      + FILE_SEP + this.getDescriptionFileName());
-    if (dscr.exists()) {
-      this.setDescription(this.readTextFile(dscr).toString());
-    } else if (gdscr.exists()) {
-      this.setDescription(this.readTextFile(gdscr).toString());
+  private void writeHtmlFile(final CharSequence inGallery) {
+    final File htmlFile = new File(this.getImageGallery().getImageDirPath()
+      + ImageGallery.FILE_SEP + getHtmlFileName());
+    final StringBuilder htmlOutput = new StringBuilder(inGallery.length() + 512);
+    htmlOutput.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">");
+    htmlOutput.append("<html>\n");
+    htmlOutput.append("<head>\n");
+    htmlOutput.append("<title>");
+    htmlOutput.append(this.getTitle());
+    htmlOutput.append("</title>");
+    htmlOutput.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />");
+    htmlOutput.append("</head>\n");
+    htmlOutput.append("<body>\n");
+    htmlOutput.append(inGallery);
+    htmlOutput.append("</body>\n");
+    htmlOutput.append("</html>\n");
+    final String html = htmlOutput.toString();
+
+    final File gzFile = new File(htmlFile.getPath() + ".gz");
+    final byte[] data = html.getBytes(UTF8);
+    final byte[] digest = HtmlFile.digest(data);
+    final String path = htmlFile.getPath();
+    // only requests for the same page, or one sharing its lock, wait for
+    // each other; the record is looked up under the lock, so a record
+    // evicted meanwhile is replaced by one which checks the file again
+    synchronized (HTML_LOCKS[(path.hashCode() & 0x7fffffff)
+      % HTML_LOCKS.length]) {
+      final HtmlFile page = HtmlFile.get(path);
+      if (htmlFile.exists() && (!getGzipHtmlFile() || gzFile.exists())) {
+        if (Arrays.equals(digest, page.digest)) {
+          return;
+        }
+        if (page.digest == null
+          && Arrays.equals(data, readHtmlFile(htmlFile))) {
+          // written by an earlier run
+          page.digest = digest;
+          return;
+        }
+      }
+      try {
+        FileUtils.writeAtomic(htmlFile, data);
+        if (getGzipHtmlFile()) {
+          final ByteArrayOutputStream bytes =
+            new ByteArrayOutputStream(data.length / 4);
+          final GZIPOutputStream gz = new GZIPOutputStream(bytes);
+          gz.write(data);
+          gz.close();
+          FileUtils.writeAtomic(gzFile, bytes.toByteArray());
+        }
+        page.digest = digest;
+      } catch (IOException e) {
+        getImageGallery().addMessage("Can not write " + htmlFile + ": "
+          + e.getMessage());
+      }
     }
   }
 
   /**
-   * Read in text from a file.
-   * @param inFile the source file
-   * @return a String with the text
+   * @param inFile a static HTML page
+   * @return its contents, or null if it can not be read
    */
-  private String readTextFile(final File inFile) {
-    final StringBuilder contents = new StringBuilder();
-    BufferedReader input = null;
+  private static byte[] readHtmlFile(final File inFile) {
     try {
-      //use buffering
-      //this implementation reads one line at a time
-      input = new BufferedReader(new FileReader(inFile));
-      String line = null; //not declared within while loop
-      while ((line = input.readLine()) != null) {
-        contents.append(line);
-        contents.append(System.getProperty("line.separator"));
-      }
-    } catch (FileNotFoundException ex) {
-      //this.addMessage(ex.getLocalizedMessage());
-    } catch (IOException ex) {
-      //this.addMessage(ex.getLocalizedMessage());
-    } finally {
-      try {
-        if (input != null) {
-          //flush and close both "input" and its underlying FileReader
-          input.close();
-        }
-      } catch (IOException ex) {
-        //this.addMessage(ex.getLocalizedMessage());
+      return Files.readAllBytes(inFile.toPath());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Read in the readme.htmlOutput file if present. If not present
+   * and the global readme.htmlOutput file exists, use the global file.
+   */
+  private void readDescription() {
+    for (File file : getDescriptionFiles(getImageGallery())) {
+      final String text = TextFileCache.getInstance().get(file);
+      if (text != null) {
+        this.setDescription(text);
+        return;
       }
     }
-    return contents.toString();
   }
 
   /**
@@ -424,6 +875,22 @@ public class HttpImageGallery implements java.io.Serializable {
   public void setHasFeed(final Boolean inHasFeed) {
     this.feed = inHasFeed;
   }
+
+  /**
+   * Get the maximum number of images in the feed.
+   * @return the newest images kept in the feed, 0 for all
+   */
+  public int getFeedItems() {
+    return this.feedItems;
+  }
+
+  /**
+   * Set the maximum number of images in the feed.
+   * @param inFeedItems the newest images kept in the feed, 0 for all
+   */
+  public void setFeedItems(final int inFeedItems) {
+    this.feedItems = inFeedItems;
+  }
   public String getImageRootDir() {
     return root;
   }
@@ -472,6 +939,22 @@ public class HttpImageGallery implements java.io.Serializable {
     this.printIcon = printIcon;
   }
 
+  /**
+   * @return the file name of the icon shown for a picture still being
+   * processed
+   */
+  public String getPlaceholderIcon() {
+    return placeholderIcon;
+  }
+
+  /**
+   * @param inPlaceholderIcon the file name of the icon shown for a picture
+   * still being processed
+   */
+  public void setPlaceholderIcon(final String inPlaceholderIcon) {
+    this.placeholderIcon = inPlaceholderIcon;
+  }
+
   public String getCaption() {
     return caption;
   }
@@ -566,6 +1049,22 @@ public class HttpImageGallery implements java.io.Serializable {
     this.html = makeHtmlFile;
   }
 
+  /**
+   * @return true if a gzip compressed copy of the HTML output file is kept
+   * next to it
+   */
+  public Boolean getGzipHtmlFile() {
+    return gzipHtml;
+  }
+
+  /**
+   * @param inGzipHtml true to keep a gzip compressed copy of the HTML output
+   * file next to it, for servers which send precompressed files
+   */
+  public void setGzipHtmlFile(final Boolean inGzipHtml) {
+    this.gzipHtml = inGzipHtml;
+  }
+
   public String getDescriptionFileName() {
     return descriptionFileName;
   }
@@ -694,6 +1193,27 @@ public class HttpImageGallery implements java.io.Serializable {
     this.threads = useThreads;
   }
 
+  /**
+   * Get the render budget: how long load() waits for the derivatives of a
+   * gallery before it is rendered with placeholders.
+   * @return the budget in ms, 0 not to wait, negative for none
+   */
+  public long getRenderBudget() {
+    return renderBudget == null ? D_RENDER_BUDGET : renderBudget;
+  }
+
+  /**
+   * Set the render budget. Any budget of 0 or more makes the derivatives in
+   * the background, as if threads were enabled. Without a budget they are
+   * made as getUseThreads() says: in the request when threads are off, so
+   * the whole gallery is waited for, otherwise in the background without
+   * waiting.
+   * @param inRenderBudget the budget in ms, 0 not to wait, negative for none
+   */
+  public void setRenderBudget(final long inRenderBudget) {
+    this.renderBudget = inRenderBudget;
+  }
+
   /**
    * @return the rotate
    */
@@ -707,4 +1227,104 @@ public class HttpImageGallery implements java.io.Serializable {
   public void setRotateImages(Boolean rotateImages) {
     this.rotate = rotateImages;
   }
+
+  /**
+   * @return true if thumbnails are made from the thumbnail embedded in the
+   * EXIF data when it is large enough
+   */
+  public Boolean getExifThumbnails() {
+    return exifThumbnails;
+  }
+
+  /**
+   * @param inExifThumbnails true to make thumbnails from the thumbnail
+   * embedded in the EXIF data, see ImageGallery.setExifThumbnails()
+   */
+  public void setExifThumbnails(final Boolean inExifThumbnails) {
+    this.exifThumbnails = inExifThumbnails;
+  }
+
+  /**
+   * @return true if the contents of changed images are compared
+   */
+  public Boolean getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * @param inContentHash true to compare the contents of images whose size
+   * or modification time changed, see ImageGallery.setContentHash()
+   */
+  public void setContentHash(final Boolean inContentHash) {
+    this.contentHash = inContentHash;
+  }
+
+  /**
+   * @return the name of the ScalingMethod for all derivatives, null for the
+   * gallery defaults
+   */
+  public String getScaling() {
+    return scaling;
+  }
+
+  /**
+   * @param inScaling the name of the ScalingMethod for all derivatives,
+   * e.g. lanczos3, null for the gallery defaults
+   */
+  public void setScaling(final String inScaling) {
+    this.scaling = inScaling;
+  }
+
+  /**
+   * @return the encoder quality for all derivatives, null for the default
+   */
+  public Float getQuality() {
+    return quality;
+  }
+
+  /**
+   * @param inQuality the encoder quality from 0 to 1 for all derivatives,
+   * null for the default
+   */
+  public void setQuality(final Float inQuality) {
+    this.quality = inQuality;
+  }
+
+  /**
+   * What was last written to a static HTML page, guarded by its lock in
+   * HTML_LOCKS.
+   */
+  private static final class HtmlFile {
+    /** SHA-256 digest of the page contents, null if not known. */
+    private byte[] digest;
+
+    /**
+     * Get the record of a page, creating it if needed.
+     * @param path the page file path
+     * @return the record
+     */
+    static HtmlFile get(final String path) {
+      synchronized (HTML_FILES) {
+        HtmlFile page = HTML_FILES.get(path);
+        if (page == null) {
+          page = new HtmlFile();
+          HTML_FILES.put(path, page);
+        }
+        return page;
+      }
+    }
+
+    /**
+     * @param data page contents
+     * @return their SHA-256 digest
+     */
+    static byte[] digest(final byte[] data) {
+      try {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+      } catch (NoSuchAlgorithmException e) {
+        // every Java platform has SHA-256
+        throw new IllegalStateException(e);
+      }
+    }
+  }
 }
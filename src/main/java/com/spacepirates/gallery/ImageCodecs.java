@@ -0,0 +1,240 @@
+/*
+ * ImageCodecs.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.imaging.jpeg.JpegProcessingException;
+import com.drew.imaging.jpeg.JpegSegmentMetadataReader;
+import com.drew.metadata.Metadata;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Image readers and writers kept per thread, so the service registry is
+ * not searched for every image, and the encoding of derivatives. Readers
+ * and writers are not thread safe, each thread gets its own and puts it back
+ * in its initial state after use.
+ *
+ * @author scott
+ */
+public final class ImageCodecs {
+
+  /** Readers of this thread by format name. */
+  private static final ThreadLocal<Map<String, ImageReader>> READERS =
+    new ThreadLocal<Map<String, ImageReader>>() {
+      @Override
+      protected Map<String, ImageReader> initialValue() {
+        return new HashMap<String, ImageReader>();
+      }
+    };
+  /** Writers of this thread by format name. */
+  private static final ThreadLocal<Map<String, ImageWriter>> WRITERS =
+    new ThreadLocal<Map<String, ImageWriter>>() {
+      @Override
+      protected Map<String, ImageWriter> initialValue() {
+        return new HashMap<String, ImageWriter>();
+      }
+    };
+
+  /** Static methods only. */
+  private ImageCodecs() {
+  }
+
+  /**
+   * Open an image stream on a file for decoding.
+   * @param file the file
+   * @return the stream, to be closed by the caller
+   * @throws IOException if the file can not be opened
+   */
+  public static ImageInputStream open(final File file) throws IOException {
+    return MappedImageInputStream.open(file);
+  }
+
+  /**
+   * Read the metadata of a JPEG file.
+   * @param file the file
+   * @param readers the segment readers to use, null for all
+   * @return the metadata
+   * @throws JpegProcessingException if the file is not a valid JPEG
+   * @throws IOException if the file can not be read
+   */
+  public static Metadata readJpegMetadata(final File file,
+    final Iterable<JpegSegmentMetadataReader> readers)
+    throws JpegProcessingException, IOException {
+    final InputStream in = MappedImageInputStream.openStream(file);
+    try {
+      return JpegMetadataReader.readMetadata(in, readers);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Get a reader of this thread for an image stream, with the stream set as
+   * its input. The reader for the file name suffix is tried first, the
+   * registry is only searched if it can't decode the stream. Hand the
+   * reader back with release() when done.
+   * @param iis the image stream
+   * @param suffix the file name suffix, e.g. "jpg"
+   * @return the reader
+   * @throws IOException if there is no reader for the stream
+   */
+  public static ImageReader getReader(final ImageInputStream iis,
+    final String suffix) throws IOException {
+    final Map<String, ImageReader> readers = READERS.get();
+    final String key = suffix.toLowerCase(Locale.ENGLISH);
+    ImageReader reader = readers.get(key);
+    if (reader == null) {
+      final Iterator<ImageReader> it = ImageIO.getImageReadersBySuffix(key);
+      if (it.hasNext()) {
+        reader = it.next();
+        readers.put(key, reader);
+      }
+    }
+    if (reader == null
+      || !reader.getOriginatingProvider().canDecodeInput(iis)) {
+      // wrong suffix, find a reader by content and don't cache it
+      final Iterator<ImageReader> it = ImageIO.getImageReaders(iis);
+      if (!it.hasNext()) {
+        throw new IOException("No image reader for ." + suffix);
+      }
+      reader = it.next();
+    }
+    reader.setInput(iis, true, true);
+    return reader;
+  }
+
+  /**
+   * Put a reader from getReader() back in its initial state. Readers which
+   * are not cached are disposed.
+   * @param reader the reader
+   */
+  public static void release(final ImageReader reader) {
+    if (READERS.get().containsValue(reader)) {
+      reader.reset();
+    } else {
+      reader.dispose();
+    }
+  }
+
+  /**
+   * Dispose the readers and writers of this thread and forget them, at the
+   * end of work on a thread the gallery does not own, e.g. a servlet
+   * request thread, which would otherwise keep them and the classes of the
+   * web application.
+   */
+  public static void clear() {
+    for (ImageReader reader : READERS.get().values()) {
+      reader.dispose();
+    }
+    READERS.remove();
+    for (ImageWriter writer : WRITERS.get().values()) {
+      writer.dispose();
+    }
+    WRITERS.remove();
+  }
+
+  /**
+   * Encode an image and replace a file with it. The image is written
+   * without metadata, and the file is replaced atomically so a derivative
+   * on disk is never half written.
+   * @param image the image
+   * @param suffix the file name suffix, which selects the format
+   * @param file the file to write
+   * @param settings quality and progressive mode
+   * @throws IOException if there is no writer or the file can't be written
+   */
+  public static void write(final BufferedImage image, final String suffix,
+    final File file, final EncoderSettings settings) throws IOException {
+    FileUtils.writeAtomic(file, encode(image, suffix, settings));
+  }
+
+  /**
+   * Encode an image in memory, without metadata, e.g. to write it later on
+   * another thread.
+   * @param image the image
+   * @param suffix the file name suffix, which selects the format
+   * @param settings quality and progressive mode
+   * @return the encoded image
+   * @throws IOException if there is no writer for the format
+   */
+  public static byte[] encode(final BufferedImage image, final String suffix,
+    final EncoderSettings settings) throws IOException {
+    final ImageWriter writer = getWriter(suffix);
+    final ImageWriteParam param = writer.getDefaultWriteParam();
+    if (settings.getQuality() >= 0 && param.canWriteCompressed()) {
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      if (param.getCompressionType() == null) {
+        param.setCompressionType(param.getCompressionTypes()[0]);
+      }
+      param.setCompressionQuality(settings.getQuality());
+    }
+    if (param.canWriteProgressive()) {
+      param.setProgressiveMode(settings.isProgressive()
+        ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+      Math.max(4096, image.getWidth() * image.getHeight() / 4));
+    final ImageOutputStream ios = new MemoryCacheImageOutputStream(bytes);
+    try {
+      writer.setOutput(ios);
+      // no stream or image metadata: nothing of the original is copied
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.reset();
+      ios.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Get the writer of this thread for a format.
+   * @param suffix the file name suffix
+   * @return the writer
+   * @throws IOException if there is no writer for the format
+   */
+  private static ImageWriter getWriter(final String suffix)
+    throws IOException {
+    final Map<String, ImageWriter> writers = WRITERS.get();
+    final String key = suffix.toLowerCase(Locale.ENGLISH);
+    ImageWriter writer = writers.get(key);
+    if (writer == null) {
+      final Iterator<ImageWriter> it = ImageIO.getImageWritersBySuffix(key);
+      if (!it.hasNext()) {
+        throw new IOException("No image writer for ." + suffix);
+      }
+      writer = it.next();
+      writers.put(key, writer);
+    }
+    return writer;
+  }
+}
@@ -22,31 +22,34 @@ package com.spacepirates.gallery;
 import com.drew.imaging.jpeg.JpegProcessingException;
 import com.drew.metadata.MetadataException;
 import com.spacepirates.swing.chooser.ImageNameFilter;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
-import javax.imageio.stream.FileCacheImageInputStream;
-import java.awt.Graphics2D;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
-import java.awt.Image;
 import java.util.LinkedHashMap;
-import java.util.Iterator;
 import java.util.Collections;
 
-import com.drew.imaging.jpeg.JpegMetadataReader;
 import com.drew.metadata.Directory;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.Tag;
-import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifReader;
+import com.drew.metadata.file.FileMetadataReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -73,10 +76,23 @@ public class ImageGallery implements java.io.Serializable {
   /** Default preview y dimension: 600. */
   private static final Integer D_PREY = 600;
   /** Default number of thumbnail images per row. */
-  private static final Integer D_THUMBS = 6;
-  /** Map of images. */
-  private Map<String, ImageInfo> images =
+  static final Integer D_THUMBS = 6;
+  /** Default compression quality of derivatives. */
+  private static final float D_QUALITY = 0.8f;
+  /**
+   * Source of gallery versions. It is seeded with the start time so that
+   * versions are not reused after a restart.
+   */
+  private static final AtomicLong VERSIONS =
+    new AtomicLong(System.currentTimeMillis());
+  /**
+   * Map of images. The map is never changed once published, updates replace
+   * it with a new one so requests can iterate it while images are added.
+   */
+  private volatile Map<String, ImageInfo> images =
     new LinkedHashMap<String, ImageInfo>();
+  /** Version of the gallery contents, changes whenever they do. */
+  private volatile long version = VERSIONS.incrementAndGet();
   /** Width of feed image. */
   private int feedX = D_FEEDX;
   /** Height of feed image. */
@@ -115,23 +131,47 @@ public class ImageGallery implements java.io.Serializable {
    */
   private int thumbsPerRow = D_THUMBS;
   /** List of messages to display in galley. */
-  private final List<String> messages = new ArrayList<String>();
+  private final List<String> messages = new CopyOnWriteArrayList<String>();
   /** ImageNameFilter for selecting only images. */
   private static ImageNameFilter inf = new ImageNameFilter();
   /** System file separator characters. */
   public static final String FILE_SEP = System.getProperty("file.separator");
   /** Flag to identify if gallery is modified. */
-  private Boolean modified = false;
+  private volatile Boolean modified = false;
   /** Flag to identify if there is an RSS feed for this gallery. */
   private Boolean feed = false;
-  /** List of image processing threads. */
-  private final List<Thread> threads = new ArrayList<Thread>();
+  /** The derivative work started by the last init(), null before. */
+  private volatile GalleryBuild build;
   /** Flag to set use of lower case or all image file names. */
   private Boolean lowerCaseNames = false;
-  /**  Allow canceling image generation run from the GUI. */
+  /**  Stops image generation of every gallery, see GalleryBuild.cancel(). */
   private static volatile boolean stopRequested = false;
   /** Flag to turn on rotation of images based on EXIF data. */
   private Boolean rotateImages = false;
+  /** What is known about the images from earlier runs. */
+  private transient GalleryManifest manifest;
+  /** Flag to compare contents of images whose size or time changed. */
+  private Boolean contentHash = false;
+  /** Flag to make thumbnails from the thumbnail embedded in EXIF data. */
+  private Boolean exifThumbnails = false;
+  /** Scaler used for each type of derivative. */
+  private final Map<DerivativeType, ImageScaler> scalers =
+    new EnumMap<DerivativeType, ImageScaler>(DerivativeType.class);
+
+  /** Encoder settings for each type of derivative. */
+  private final Map<DerivativeType, EncoderSettings> encoders =
+    new EnumMap<DerivativeType, EncoderSettings>(DerivativeType.class);
+
+  {
+    scalers.put(DerivativeType.PREVIEW, ScalingMethod.BICUBIC);
+    scalers.put(DerivativeType.THUMBNAIL, ScalingMethod.BICUBIC);
+    scalers.put(DerivativeType.FEED, ScalingMethod.BILINEAR);
+    // previews are big enough for progressive display to pay off
+    encoders.put(DerivativeType.PREVIEW, new EncoderSettings(D_QUALITY, true));
+    encoders.put(DerivativeType.THUMBNAIL,
+      new EncoderSettings(D_QUALITY, false));
+    encoders.put(DerivativeType.FEED, new EncoderSettings(D_QUALITY, false));
+  }
 
   /**
    * Create an image gallery.
@@ -173,6 +213,39 @@ public class ImageGallery implements java.io.Serializable {
    */
   public final void init(final String baseDir, final int thumbs,
     final Boolean feedThumbnails, final Boolean useThreads) {
+    start(baseDir, thumbs, feedThumbnails, useThreads,
+      GalleryExecutor.Priority.BACKFILL);
+  }
+
+  /**
+   * Start a builder for a gallery, for building it without waiting, e.g.
+   * <pre>
+   * ImageGallery.builder(dir).rotateImages(true).start().getFuture()
+   * </pre>
+   * @param baseDir full path of the image directory
+   * @return the builder
+   */
+  public static GalleryBuilder builder(final String baseDir) {
+    return new GalleryBuilder(baseDir);
+  }
+
+  /**
+   * List the images and start making their missing derivatives. With
+   * threads, the images are listed before this returns and the derivatives
+   * are made on the GalleryExecutor; without, the build is over when this
+   * returns.
+   * @param baseDir Starting point for location of images.
+   * @param thumbs Number of thumbnails per row to display.
+   * @param feedThumbnails if true, generate feed thumbnails
+   * @param useThreads if true, use threads
+   * @param priority the priority of the derivative work
+   * @return the handle on the derivative work
+   */
+  final GalleryBuild start(final String baseDir, final int thumbs,
+    final Boolean feedThumbnails, final Boolean useThreads,
+    final GalleryExecutor.Priority priority) {
+    final GalleryBuild job = new GalleryBuild(this);
+    build = job;
     feed = feedThumbnails;
     galleryRootPath = baseDir.substring(
       0, baseDir.indexOf(galleryRoot)) + galleryRoot;
@@ -195,23 +268,89 @@ public class ImageGallery implements java.io.Serializable {
     if (lowerCaseNames) {
       this.lowerCaseFileNames(baseDir);
     }
+    manifest = new GalleryManifest(this);
+    final boolean known = manifest.load();
+    if (known) {
+      messages.add("Manifest entries: " + manifest.size());
+    }
     // get list of images in baseDir
     this.listImages(baseDir);
+    if (manifest.isStale()) {
+      // made for other sizes or an older format, remake them all
+      messages.add("Manifest is stale, recreating derivatives");
+      for (String name : this.getImages().keySet()) {
+        deleteDerivatives(name);
+      }
+    }
+    final List<ImageInfo> pending =
+      this.synchronize(this.getImages().values(), true);
 
     // generate thumbnails and previews for images in baseDir
+    job.setTotal(pending.size());
     if (useThreads) {
-      final Thread tmanager = new Thread(new TaskManager(), "taskmanager");
-      tmanager.start();
+      this.submitDerivatives(pending, !known, job, priority);
     } else {
-      this.createPreviewsAndThumbnails();
+      this.createPreviewsAndThumbnails(pending, job);
+      this.finish(!known);
+      job.complete();
+    }
+    return job;
+  }
+
+  /**
+   * Clean up after the derivatives were created.
+   * @param sweep if true, there was no manifest to say which derivatives
+   * belong to removed images, so check the derivative directories in full
+   */
+  private void finish(final boolean sweep) {
+    if (sweep) {
       this.removeOrphans(thumbDirPath);
       this.removeOrphans(previewDirPath);
 
       if (feed) {
         this.removeOrphans(feedDirPath);
       }
-      this.addBlankThumbnails();
     }
+    this.saveManifest();
+    this.addBlankThumbnails();
+  }
+
+  /**
+   * Compare images with the manifest and do only the work their changes
+   * need: images which are unchanged are set up from the manifest, the
+   * derivatives of changed and removed images are deleted.
+   * @param current the images to check
+   * @param complete true if current holds every image of the gallery
+   * @return the images which need derivatives created
+   */
+  private List<ImageInfo> synchronize(final Collection<ImageInfo> current,
+    final boolean complete) {
+    final GallerySync sync = new GallerySync(manifest, getContentHash());
+    sync.diff(current, complete, messages);
+    final List<ImageInfo> pending = new ArrayList<ImageInfo>();
+    for (ImageInfo image : sync.getUnchanged()) {
+      if (!isOrientedAsConfigured(manifest.get(image.getFilename()))) {
+        // rotation was switched, the derivatives face the wrong way
+        deleteDerivatives(image.getFilename());
+        pending.add(image);
+      } else if (!restoreFromManifest(image)) {
+        // a derivative was never made, e.g. feeds were turned on
+        pending.add(image);
+      }
+    }
+    for (ImageInfo image : sync.getChanged()) {
+      deleteDerivatives(image.getFilename());
+      pending.add(image);
+    }
+    pending.addAll(sync.getAdded());
+    for (String name : sync.getRemoved()) {
+      deleteDerivatives(name);
+    }
+    if (!sync.isEmpty()) {
+      setModified(true);
+    }
+    sync.report(this);
+    return pending;
   }
 
   /** Default constructor. */
@@ -248,10 +387,13 @@ public class ImageGallery implements java.io.Serializable {
       final List<File> fileList = Arrays.asList(files);
       Collections.sort(fileList);
       this.addMessage("Number of image files: " + fileList.size());
+      final Map<String, ImageInfo> found =
+        new LinkedHashMap<String, ImageInfo>();
       for (File file : fileList) {
         this.addMessage("Found image: " + file.getName());
-        this.addImage(file.getName(), new ImageInfo(file));
+        found.put(file.getName(), new ImageInfo(file));
       }
+      this.setImages(found);
     } else {
       this.addMessage("No such folder: " + baseDir);
     }
@@ -279,349 +421,454 @@ public class ImageGallery implements java.io.Serializable {
   }
 
   /**
-   * Class that manages checks if threads are alive.
+   * Create the derivatives of each image as a task of its own on the shared
+   * GalleryExecutor, so idle threads take whatever image is next. The image
+   * which completes last cleans up, saves the manifest and completes the
+   * build.
+   * @param pending images which need derivatives
+   * @param sweep check the derivative directories in full
+   * @param job the build to report to
+   * @param priority the priority, see prioritize()
+   */
+  private void submitDerivatives(final List<ImageInfo> pending,
+    final boolean sweep, final GalleryBuild job,
+    final GalleryExecutor.Priority priority) {
+    createDerivativeDirs();
+    if (pending.isEmpty()) {
+      this.finish(sweep);
+      job.complete();
+      return;
+    }
+    final AtomicInteger remaining = new AtomicInteger(pending.size());
+    final Runnable imageDone = new Runnable() {
+      @Override
+      public void run() {
+        if (remaining.decrementAndGet() == 0) {
+          try {
+            finish(sweep);
+          } finally {
+            job.complete();
+          }
+        }
+      }
+    };
+    for (ImageInfo imageInfo : pending) {
+      submitDerivatives(imageInfo, job, priority, imageDone);
+    }
+  }
+
+  /**
+   * Move the derivatives of this gallery which are still queued ahead of
+   * background work, e.g. because a page of the gallery was requested.
    */
-  private class TaskManager implements Runnable {
+  public void prioritize() {
+    final GalleryBuild job = build;
+    if (job != null && !job.isDone()) {
+      GalleryExecutor.getInstance().prioritize(job);
+    }
+  }
 
-    /** Time to wait before checking for thread completion. */
-    private final Integer pollInterval = 2000;
+  /**
+   * @return the derivative work started by the last init(), null if the
+   * gallery was not initialized
+   */
+  public GalleryBuild getBuild() {
+    return build;
+  }
 
-    @Override
-    public void run() {
-      divideAndConquer2();
-      int score = threads.size();
-      while (score > 0) {
-        try {
-          Thread.sleep(pollInterval);
-        } catch (InterruptedException e) {
-          //
+  /**
+   * Create the derivative directories which do not exist yet.
+   */
+  private void createDerivativeDirs() {
+    final File previewDir = new File(this.getPreviewDirPath());
+    if (!previewDir.exists() && !previewDir.mkdir()) {
+      LOG.warning("Create directory failed: ".concat(previewDir.getName()));
+    }
+
+    final File thumbnailDir = new File(this.getThumbDirPath());
+    if (!thumbnailDir.exists() && !thumbnailDir.mkdir()) {
+      LOG.warning("Create directory failed: ".concat(thumbnailDir.getName()));
+    }
+
+    if (feed) {
+      final File feedDir = new File(this.getFeedDirPath());
+      if (!feedDir.exists() && !feedDir.mkdir()) {
+        LOG.warning("Create directory failed: ".concat(feedDir.getName()));
+      }
+    }
+  }
+
+  /**
+   * Create previews and thumbnails for Collection of ImageInfos.
+   * @param inImages the collection of ImageInfos, with file attributes read
+   * @param job the build to report to, null for none
+   */
+  private void createPreviewsAndThumbnails(
+    final Collection<ImageInfo> inImages, final GalleryBuild job) {
+    createDerivativeDirs();
+    try {
+      for (ImageInfo imageInfo : inImages) {
+        if (isStopRequested() || (job != null && job.isCancelled())) {
+          break;
         }
-        for (Thread thread : threads) {
-          if (!thread.isAlive()) {
-            score--;
+        boolean success = false;
+        try {
+          createDerivatives(imageInfo);
+          success = true;
+        } catch (IOException e) {
+          this.addMessage(e.getMessage());
+        } finally {
+          if (job != null) {
+            job.imageDone(success);
           }
         }
       }
-      createPreviewsAndThumbnails();
-      removeOrphans(getThumbDirPath());
-      removeOrphans(getPreviewDirPath());
-
-      if (feed) {
-        removeOrphans(getFeedDirPath());
-      }
-      addBlankThumbnails();
+    } finally {
+      // this runs on the caller's thread, e.g. a request thread
+      RasterPool.clear();
+      ImageCodecs.clear();
     }
   }
 
   /**
-   * Process photos in parallel using all available CPUs.
+   * Create any missing derivatives of one image by checking for each of them
+   * on disk, and record the result in the manifest.
+   * @param imageInfo the image
+   * @throws IOException if the image can not be read or a derivative written
    */
-  private void divideAndConquer2() {
-    final Runtime runtime = Runtime.getRuntime();
-    divideAndConquer2(runtime.availableProcessors());
+  private void createDerivatives(final ImageInfo imageInfo)
+    throws IOException {
+    final Derivatives job = prepareDerivatives(imageInfo, false);
+    renderDerivatives(job, false);
+    completeDerivatives(job);
   }
 
   /**
-   * Process photos in parallel.
-   * @param cpus the number of CPUs to utilize
+   * Create the derivatives of an image in stages on the GalleryExecutor:
+   * the file system work on the I/O pool, the image work on the CPU pool.
+   * @param imageInfo the image
+   * @param build the build to report to, also the owner of the task
+   * @param priority the priority
+   * @param done called when the image is complete or has failed
    */
-  private void divideAndConquer2(final Integer cpus) {
-    final Object[] original = this.getImages().values().toArray();
-    final int setsize = original.length / cpus;
-    int j = 0;
-    for (int i = 1; i <= cpus; i++) {
-      final Collection set = new ArrayList();
-      int realsize = setsize * i;
-      if (i == cpus) {
-        realsize = realsize + (original.length % cpus);
+  private void submitDerivatives(final ImageInfo imageInfo,
+    final GalleryBuild build, final GalleryExecutor.Priority priority,
+    final Runnable done) {
+    GalleryExecutor.getInstance().submit(new GalleryExecutor.StagedTask() {
+      /** The derivatives, null if the build was stopped. */
+      private Derivatives job;
+
+      @Override
+      protected void read() throws IOException {
+        if (!isStopRequested() && !build.isCancelled()) {
+          job = prepareDerivatives(imageInfo, true);
+        }
       }
-      for (; j < realsize; j++) {
-        set.add(original[j]);
+
+      @Override
+      protected void compute() throws IOException {
+        if (job != null) {
+          renderDerivatives(job, true);
+        }
       }
-      final Runner runner = new Runner(set);
-      final Thread thread = new Thread(runner, "lazygallery" + i);
-      thread.setDaemon(true);
-      synchronized (threads) {
-        threads.add(thread);
+
+      @Override
+      protected void write() throws IOException {
+        if (job != null) {
+          completeDerivatives(job);
+        }
       }
 
-      thread.start();
-    }
+      @Override
+      protected void done(final Exception failure) {
+        try {
+          if (build.isCancelled() && (job == null || failure != null)) {
+            // dropped or cut short by the cancel, neither done nor failed
+            return;
+          }
+          if (failure instanceof IOException) {
+            addMessage(failure.getMessage());
+          } else if (failure != null) {
+            LOG.warning(imageInfo.getFilename() + ": " + failure);
+            addMessage(failure.toString());
+          }
+          build.imageDone(failure == null);
+        } finally {
+          done.run();
+        }
+      }
+    }, build, priority);
   }
 
   /**
-   * In most cases, the Runnable interface should be used if you are only
-   * planning to override the run() method and no other Thread methods.
-   * This is important because classes should not be subclassed unless the
-   * programmer intends on modifying or enhancing the fundamental
-   * behavior of the class.
+   * First stage of creating derivatives: find out which are missing and
+   * read what is needed to make them.
+   * @param imageInfo the image
+   * @param prefetch if true, read the file which will be decoded into the
+   * page cache, so that decoding it does not wait for the disk
+   * @return the derivatives of the image
+   * @throws IOException if the image can not be read
    */
-  private class Runner implements Runnable {
-
-    /** Collection of ImageInfos. */
-    private Collection<ImageInfo> rImages;
-
-    /**
-     * Create a Runner.
-     * @param inRImages the ImageInfos to be processed
-     */
-    public Runner(final Collection<ImageInfo> inRImages) {
-      rImages = inRImages;
+  private Derivatives prepareDerivatives(final ImageInfo imageInfo,
+    final boolean prefetch) throws IOException {
+    final Derivatives job = new Derivatives(imageInfo);
+    job.previewInfo = new ImageInfo(
+      new File(this.getPreviewDirPath() + imageInfo.getFile().getName()));
+    job.previewInfo.setUrl(this.getPreviewFileURL(imageInfo));
+    job.thumbInfo = new ImageInfo(
+      new File(thumbDirPath + imageInfo.getFile().getName()));
+    job.feedInfo = new ImageInfo(new File(this.feedDirPath
+      + imageInfo.getFile().getName()));
+
+    if (getRotateImages() && imageInfo.getOrientation() == 0) {
+      readOrientation(imageInfo);
     }
-
-    @Override
-    public void run() {
-      createPreviewsAndThumbnails(rImages);
+    final boolean previewExists = job.previewInfo.getFile().exists();
+    if (!previewExists) {
+      // we're creating a new preview, so mark the gallery as modified
+      if (!isModified()) {
+        setModified(true);
+      }
+      job.missing.add(DerivativeType.PREVIEW);
     }
-
-    /**
-     * Get the ImageInfo collection.
-     * @return the ImageInfo collection
-     */
-    public Collection<ImageInfo> getRImages() {
-      return rImages;
+    if (!job.thumbInfo.getFile().exists()) {
+      job.missing.add(DerivativeType.THUMBNAIL);
     }
-
-    /**
-     * Set the ImageInfo collection.
-     * @param inRImages ImageInfo collection to process
-     */
-    public void setRImages(final Collection<ImageInfo> inRImages) {
-      rImages = inRImages;
+    if (feed && !job.feedInfo.getFile().exists()) {
+      job.missing.add(DerivativeType.FEED);
     }
+    if (prefetch && !job.missing.isEmpty()) {
+      // the pipeline decodes the preview on disk in preference to the original
+      MappedImageInputStream.prefetch(previewExists
+        ? job.previewInfo.getFile() : imageInfo.getFile());
+    }
+    return job;
   }
 
   /**
-   * Create the preview and thumbnail images.
+   * Second stage of creating derivatives: decode, scale and encode.
+   * @param job the derivatives
+   * @param deferWrites if true, only encode the derivatives, the last stage
+   * writes them
+   * @throws IOException if the image can not be decoded or a derivative
+   * written
    */
-  private void createPreviewsAndThumbnails() {
-    this.createPreviewsAndThumbnails(this.getImages().values());
+  private void renderDerivatives(final Derivatives job,
+    final boolean deferWrites) throws IOException {
+    if (!job.missing.isEmpty()) {
+      job.pipeline = new DerivativePipeline(this, deferWrites);
+      job.pipeline.run(job.image, job.previewInfo, job.thumbInfo,
+        job.feedInfo, job.missing);
+    }
   }
 
   /**
-   * Create previews and thumbnails for Collection of ImageInfos.
-   * @param inImages the collection of ImageInfos
+   * Last stage of creating derivatives: write them, and record the result
+   * in the manifest.
+   * @param job the derivatives
+   * @throws IOException if a derivative can not be written
    */
-  private void createPreviewsAndThumbnails(
-    final Collection<ImageInfo> inImages) {
-    final File previewDir = new File(this.getPreviewDirPath());
-    if (!previewDir.exists() && !previewDir.mkdir()) {
-      LOG.warning("Create directory failed: ".concat(previewDir.getName()));
+  private void completeDerivatives(final Derivatives job)
+    throws IOException {
+    if (job.pipeline != null) {
+      job.pipeline.flush();
     }
-
-    final File thumbnailDir = new File(this.getThumbDirPath());
-    if (!thumbnailDir.exists() && !thumbnailDir.mkdir()) {
-      LOG.warning("Create directory failed: ".concat(thumbnailDir.getName()));
+    final ImageInfo imageInfo = job.image;
+    final ImageInfo previewInfo = job.previewInfo;
+    final ImageInfo thumbInfo = job.thumbInfo;
+    final ImageInfo feedInfo = job.feedInfo;
+    if (previewInfo.getWidth() == 0) {
+      readDimensions(previewInfo);
     }
+    imageInfo.setPreviewInfo(previewInfo);
+    thumbInfo.setWidth(this.getThumbnailX());
+    thumbInfo.setHeight(this.getThumbnailY());
+    imageInfo.setThumbnailInfo(thumbInfo);
 
+    int flags = GalleryManifest.THUMBNAIL;
     if (feed) {
-      final File feedDir = new File(this.getFeedDirPath());
-      if (!feedDir.exists() && !feedDir.mkdir()) {
-        LOG.warning("Create directory failed: ".concat(feedDir.getName()));
-      }
+      feedInfo.setWidth(this.getFeedX());
+      feedInfo.setHeight(this.getFeedY());
+      imageInfo.setFeedInfo(feedInfo);
+      flags |= GalleryManifest.FEED;
     }
 
+    createExifFile(imageInfo);
+
+    if (imageInfo.getWidth() == 0) {
+      readDimensions(imageInfo);
+    }
+    if (previewInfo.getFile().equals(imageInfo.getFile())) {
+      flags |= GalleryManifest.PREVIEW_ORIGINAL;
+    } else {
+      flags |= GalleryManifest.PREVIEW;
+    }
+    if (imageInfo.isExifPresent()) {
+      flags |= GalleryManifest.EXIF;
+    }
     if (getRotateImages()) {
-      this.exifAndRotation(inImages);
+      flags |= GalleryManifest.ORIENTED;
     }
+    manifest.put(new GalleryManifest.Entry(imageInfo, flags,
+      getContentHash() ? GallerySync.hash(imageInfo.getFile()) : 0));
+    touch();
+  }
+
+  /** The derivatives of an image, passed from one stage to the next. */
+  private static final class Derivatives {
+
+    /** The original. */
+    private final ImageInfo image;
+    /** The preview. */
+    private ImageInfo previewInfo;
+    /** The thumbnail. */
+    private ImageInfo thumbInfo;
+    /** The feed image. */
+    private ImageInfo feedInfo;
+    /** The derivatives which are not on disk. */
+    private final Set<DerivativeType> missing =
+      EnumSet.noneOf(DerivativeType.class);
+    /** The pipeline which made them, null if none were missing. */
+    private DerivativePipeline pipeline;
 
-    for (ImageInfo imageInfo : inImages) {
-      if (isStopRequested()) {
-        break;
-      }
-      BufferedImage bImage = null;
-      try {
-        final FileInputStream fis = new FileInputStream(imageInfo.getFile());
-        final FileCacheImageInputStream iis =
-          new FileCacheImageInputStream(fis, null);
-
-        ImageInfo previewInfo = new ImageInfo(
-          new File(this.getPreviewDirPath() + imageInfo.getFile().getName()));
-        previewInfo.setUrl(this.getPreviewFileURL(imageInfo));
-        // if the preview does not already exist, create it.
-        if (!previewInfo.getFile().exists()) {
-          // we're creating a new preview, so mark the gallery as modified
-          if (!isModified()) {
-            setModified(true);
-          }
-          bImage = ImageIO.read(iis);
-          createPreview(imageInfo, previewInfo, bImage);
-        }
-        imageInfo.setPreviewInfo(previewInfo);
-        //System.out.println("Thread: " + Thread.currentThread().getName()
-        //+ " ImageInfo: " + previewInfo.getFilename());
-
-        final ImageInfo thumbInfo = new ImageInfo(
-          new File(thumbDirPath + imageInfo.getFile().getName()));
-        if (!thumbInfo.getFile().exists()) {
-          if (bImage == null) {
-            bImage = ImageIO.read(iis);
-          }
-          createThumbnail(imageInfo, thumbInfo, bImage);
-        }
-        imageInfo.setThumbnailInfo(thumbInfo);
-
-        if (feed) {
-          final ImageInfo feedInfo = new ImageInfo(new File(this.feedDirPath
-            + imageInfo.getFile().getName()));
-          if (!feedInfo.getFile().exists()) {
-            if (bImage == null) {
-              bImage = ImageIO.read(iis);
-            }
-            createThumbnail(imageInfo, feedInfo, bImage, this.getFeedX(),
-              this.getFeedY());
-          }
-        }
+    /**
+     * @param inImage the original
+     */
+    Derivatives(final ImageInfo inImage) {
+      image = inImage;
+    }
+  }
+
+  /**
+   * Set up an image from its manifest entry if the original has not changed
+   * since the entry was written and all its derivatives were made.
+   * @param imageInfo the image, with length and modification time set
+   * @return true if the image is complete, false if it must be processed
+   */
+  private boolean restoreFromManifest(final ImageInfo imageInfo) {
+    final GalleryManifest.Entry entry =
+      manifest.get(imageInfo.getFilename());
+    if (entry == null || !entry.matches(imageInfo)
+      || !entry.hasFlag(GalleryManifest.THUMBNAIL)
+      || (feed && !entry.hasFlag(GalleryManifest.FEED))
+      || !(entry.hasFlag(GalleryManifest.PREVIEW)
+        || entry.hasFlag(GalleryManifest.PREVIEW_ORIGINAL))) {
+      return false;
+    }
+    imageInfo.setWidth(entry.getWidth());
+    imageInfo.setHeight(entry.getHeight());
+    imageInfo.setOrientation(entry.getOrientation());
+    imageInfo.setExifPresent(entry.hasFlag(GalleryManifest.EXIF));
+
+    final ImageInfo previewInfo;
+    if (entry.hasFlag(GalleryManifest.PREVIEW_ORIGINAL)) {
+      previewInfo = new ImageInfo(imageInfo.getFile());
+      previewInfo.setUrl(this.getImageFileURL(imageInfo));
+    } else {
+      previewInfo = new ImageInfo(
+        new File(this.getPreviewDirPath() + imageInfo.getFilename()));
+      previewInfo.setUrl(this.getPreviewFileURL(imageInfo));
+    }
+    previewInfo.setWidth(entry.getPreviewWidth());
+    previewInfo.setHeight(entry.getPreviewHeight());
+    imageInfo.setPreviewInfo(previewInfo);
 
-        createExifFile(imageInfo);
+    final ImageInfo thumbInfo = new ImageInfo(
+      new File(this.getThumbDirPath() + imageInfo.getFilename()));
+    thumbInfo.setWidth(entry.getThumbnailWidth());
+    thumbInfo.setHeight(entry.getThumbnailHeight());
+    imageInfo.setThumbnailInfo(thumbInfo);
 
-      } catch (IOException e) {
-        this.addMessage(e.getMessage());
-      }
+    if (feed) {
+      final ImageInfo feedInfo = new ImageInfo(
+        new File(this.getFeedDirPath() + imageInfo.getFilename()));
+      feedInfo.setWidth(entry.getFeedWidth());
+      feedInfo.setHeight(entry.getFeedHeight());
+      imageInfo.setFeedInfo(feedInfo);
     }
+    return true;
   }
 
   /**
-   * Check the EXIF data for orientation, and rotate image if necessary.
-   * http://www.impulseadventure.com/photo/exif-orientation.html
-   * http://www.drewnoakes.com/code/exif/sampleUsage.html
-   * http://forums.sun.com/thread.jspa?threadID=5178452
-   * file:///opt/java/sdk/se/1.6.0-docs/api/index.html
-   * http://www.java2s.com/Code/Java/2D-Graphics-GUI/RotateImage45Degrees.htm
-   * http://math.rice.edu/~pcmi/sphere/drg_txt.html
-   * @param rimages the collection of rimages
-   */
-  private void exifAndRotation(final Collection<ImageInfo> rimages) {
-    for (ImageInfo image : rimages) {
-      if ((image.getExtention().equals(ImageNameFilter.JPEG)
-        || image.getExtention().equals(ImageNameFilter.JPG))) {
+   * Read the pixel dimensions of an image from its header, without decoding
+   * it.
+   * @param imageInfo the image
+   */
+  static void readDimensions(final ImageInfo imageInfo) {
+    try {
+      final ImageInputStream iis = ImageCodecs.open(imageInfo.getFile());
+      try {
+        final ImageReader reader =
+          ImageCodecs.getReader(iis, imageInfo.getExtention());
         try {
-          final Metadata metadata =
-            JpegMetadataReader.readMetadata(image.getFile());
-          final Directory exifDirectory =
-            metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
-          final int orientation =
-            exifDirectory.getInt(ExifSubIFDDirectory.TAG_ORIENTATION);
-          if (orientation == 6) { // rotate 90 degress CW
-            ImageUtils.rotateImage(image, 90);
-          } else if (orientation == 8) { // rotate 90 degrees CCW (-90)
-            ImageUtils.rotateImage(image, -90);
-          } else if (orientation == 3) { // roate 180 degrees CW
-            ImageUtils.rotateImage(image, 180);
-          }
-        } catch (MetadataException ex) {
-        } catch (IOException ex) {
-        } catch (JpegProcessingException ex) {
+          imageInfo.setWidth(reader.getWidth(0));
+          imageInfo.setHeight(reader.getHeight(0));
+        } finally {
+          ImageCodecs.release(reader);
         }
+      } finally {
+        iis.close();
       }
+    } catch (IOException e) {
+      // dimensions stay unknown
     }
   }
+
   /**
-   * This method generates the preview images. If the original image is smaller
-   * than the preview image dimensions, just set the URL for the preview to
-   * point to the original image file and don'tmanager create a preview image.
-   * @param image the ImageInfo
-   * @param previewInfo the preview ImageInfo
-   * @param bImage a buffered image
-   * @return the ImageInfo
+   * Write the manifest if any image was processed.
    */
-  private ImageInfo createPreview(final ImageInfo image,
-    final ImageInfo previewInfo, final BufferedImage bImage) {
+  private void saveManifest() {
+    manifest.retainAll(images.keySet());
     try {
-      final int fullWidth = bImage.getWidth();
-      final int fullHeight = bImage.getHeight();
-      if (fullWidth > this.getPreviewX() || fullHeight > this.getPreviewY()) {
-        int preX, preY;
-        Double pXd, pYd;
-        // landscape
-        if (fullWidth >= fullHeight && fullWidth > this.getPreviewX()) {
-          preX = this.getPreviewX();
-          pYd = 1.0 * this.getPreviewX() * fullHeight / fullWidth;
-          preY = pYd.intValue();
-        } else if (fullHeight > this.getPreviewY()) {  //portrait
-          preY = this.getPreviewY();
-          pXd = 1.0 * this.getPreviewY() * fullWidth / fullHeight;
-          preX = pXd.intValue();
-        } else { //square
-          preX = fullWidth;
-          preY = fullHeight;
-        }
-
-        previewInfo.setWidth(preX);
-        previewInfo.setHeight(preY);
-
-        final BufferedImage scaledImage =
-          this.getScaledBufferedImage(bImage, preX, preY);
-        ImageIO.write(scaledImage, image.getExtention(), previewInfo.getFile());
-      } else {
-        previewInfo.setFile(image.getFile());
-        previewInfo.setUrl(this.getImageFileURL(image));
-      }
-
+      manifest.save();
     } catch (IOException e) {
-      this.addMessage(e.getMessage());
-      System.out.println("error: " + e);
-      //e.printStackTrace();
+      this.addMessage("Could not write manifest: " + e.getMessage());
     }
-    return previewInfo;
   }
 
   /**
-   * Create a single thumbnail image using default thumbnail size.
-   * @param imageInfo the full size image info
-   * @param thumbInfo the thumbnail info
-   * @param bImage a BufferedImage
-   * @return the thumbnail info
+   * Check whether the derivatives recorded in a manifest entry were made
+   * with the current rotation setting. Images known to be stored upright
+   * look the same either way.
+   * @param entry the manifest entry
+   * @return true if the derivatives can be kept
    */
-  private ImageInfo createThumbnail(final ImageInfo imageInfo,
-    final ImageInfo thumbInfo, final BufferedImage bImage) {
-    return createThumbnail(imageInfo, thumbInfo, bImage, this.getThumbnailX(),
-      this.getThumbnailY());
+  private boolean isOrientedAsConfigured(final GalleryManifest.Entry entry) {
+    return entry == null || entry.getOrientation() == 1
+      || entry.hasFlag(GalleryManifest.ORIENTED) == getRotateImages();
   }
 
   /**
-   * Create a single thumbnail image of the specified dimensions.
-   * @param image the full size image info
-   * @param thumbInfo the thumbnail image info
-   * @param bImage the BufferedImage
-   * @param inThumbnailX the width
-   * @param inThumbnailY the height
-   * @return the thumbnail image info
+   * Read the EXIF orientation of an image into its image info. Only the
+   * EXIF segment is parsed, the result is kept in the manifest so this
+   * happens once per original. Images without an orientation tag are
+   * upright.
+   * http://www.impulseadventure.com/photo/exif-orientation.html
+   * @param image the image
    */
-  private ImageInfo createThumbnail(final ImageInfo image,
-    final ImageInfo thumbInfo, final BufferedImage bImage,
-    final Integer inThumbnailX, final Integer inThumbnailY) {
+  private void readOrientation(final ImageInfo image) {
+    image.setOrientation(1);
+    if (!(image.getExtention().equals(ImageNameFilter.JPEG)
+      || image.getExtention().equals(ImageNameFilter.JPG))) {
+      return;
+    }
     try {
-      final int fullWidth = bImage.getWidth();
-      final int fullHeight = bImage.getHeight();
-      // save this metadata with the original ImageInfo object
-      image.setWidth(fullWidth);
-      image.setHeight(fullHeight);
-
-      // now build the thumbnail image by first cropping it square, and then
-      // scaling it.
-      BufferedImage thumbnailImage;
-      if (fullWidth > fullHeight) {
-        final int diffX = fullWidth - fullHeight;
-        thumbnailImage =
-          bImage.getSubimage(diffX / 2, 0, fullWidth - diffX, fullHeight);
-      } else if (fullHeight > fullWidth) {
-        final int diffY = fullHeight - fullWidth;
-        thumbnailImage =
-          bImage.getSubimage(0, diffY / 2, fullWidth, fullHeight - diffY);
-      } else { // Image is already square
-        thumbnailImage = bImage;
+      final Metadata metadata = ImageCodecs.readJpegMetadata(
+        image.getFile(), Collections.singletonList(new ExifReader()));
+      final ExifIFD0Directory directory =
+        metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+      if (directory != null
+        && directory.containsTag(ExifIFD0Directory.TAG_ORIENTATION)) {
+        image.setOrientation(
+          directory.getInt(ExifIFD0Directory.TAG_ORIENTATION));
       }
-
-      thumbnailImage = this.getScaledBufferedImage(thumbnailImage,
-        inThumbnailX, inThumbnailY);
-
-      ImageIO.write(thumbnailImage, image.getExtention(), thumbInfo.getFile());
-    } catch (IOException e) {
-      this.addMessage(e.getLocalizedMessage());
+    } catch (MetadataException ex) {
+      // treat as upright
+    } catch (IOException ex) {
+      // treat as upright
+    } catch (JpegProcessingException ex) {
+      // treat as upright
     }
-
-    return thumbInfo;
   }
 
   /**
@@ -643,18 +890,15 @@ public class ImageGallery implements java.io.Serializable {
         try {
           Writer output = new BufferedWriter(new FileWriter(exifFile));
           // Extract any EXIF metadata to a file
-          Metadata metadata = JpegMetadataReader.readMetadata(image.getFile());
+          Metadata metadata =
+            ImageCodecs.readJpegMetadata(image.getFile(), null);
+          new FileMetadataReader().read(image.getFile(), metadata);
           if (metadata.getDirectoryCount() > 0) {
             image.setExifPresent(true);
             // iterate through metadata directories
-            Iterable<Directory> directories = metadata.getDirectories();
-
-            while (directories.iterator().hasNext()) {
-              Directory directory = (Directory) directories.iterator().next();
+            for (Directory directory : metadata.getDirectories()) {
               // iterate through tags and print to System.out
-              Collection tags = directory.getTags();
-              while (tags.iterator().hasNext()) {
-                Tag tag = (Tag) tags.iterator().next();
+              for (Tag tag : directory.getTags()) {
                 output.write(tag + "\n");
               }
             }
@@ -674,20 +918,22 @@ public class ImageGallery implements java.io.Serializable {
     }
   }
 
-  private BufferedImage getScaledBufferedImage(BufferedImage bImage, int x, int y) {
-    Image scaledImage = bImage.getScaledInstance(x, y, java.awt.Image.SCALE_SMOOTH);
-    BufferedImage bsImage = new BufferedImage(x, y, BufferedImage.TYPE_INT_RGB);
-    Graphics2D g2 = bsImage.createGraphics();
-    g2.drawImage(scaledImage, 0, 0, null);
-    return bsImage;
+  /**
+   * This method creates empty ImageInfos to aid in GUI loops.
+   */
+  private synchronized void addBlankThumbnails() {
+    this.setImages(withBlankThumbnails(getRealImages()));
   }
 
   /**
-   * This method creates empty ImageInfos to aid in GUI loops.
+   * Pad a map of images with blank entries to fill the last row.
+   * @param realImages the images, without blanks
+   * @return the padded map
    */
-  private void addBlankThumbnails() {
+  private Map<String, ImageInfo> withBlankThumbnails(
+    final Map<String, ImageInfo> realImages) {
     int blanksNeeded = 0;
-    int numImages = this.getImages().size();
+    int numImages = realImages.size();
     int numThumbs = this.getThumbsPerRow();
     int remainder = numImages % this.getThumbsPerRow();
     while (remainder != 0) {
@@ -698,23 +944,240 @@ public class ImageGallery implements java.io.Serializable {
     for (int i = 0; i < blanksNeeded; i++) {
       ImageInfo blankInfo = new ImageInfo(null);
       blankInfo.setTitle("blank" + i);
-      this.getImages().put("blank" + i + ".jpg", blankInfo);
+      realImages.put("blank" + i + ".jpg", blankInfo);
+    }
+    return realImages;
+  }
+
+  /**
+   * @return a modifiable copy of the images map, without the blanks
+   */
+  private Map<String, ImageInfo> getRealImages() {
+    final Map<String, ImageInfo> real = new LinkedHashMap<String, ImageInfo>();
+    for (Map.Entry<String, ImageInfo> entry : images.entrySet()) {
+      if (entry.getValue().getFile() != null) {
+        real.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return real;
+  }
+
+  /**
+   * Add or refresh a single image, e.g. after it was uploaded or edited.
+   * Its derivatives are recreated if the original changed since they were
+   * made, and the image is put in its place in the sorted gallery.
+   * @param file the image file
+   */
+  public void updateImage(final File file) {
+    final ImageInfo imageInfo = new ImageInfo(file);
+    createPreviewsAndThumbnails(
+      synchronize(Collections.singletonList(imageInfo), false), null);
+    putImage(imageInfo);
+    saveManifest();
+  }
+
+  /**
+   * Bring a single image up to date with its file in the background, like
+   * updateImage() or removeImage() if the file is gone. The work is staged
+   * on the GalleryExecutor as background work of this gallery.
+   * @param file the image file
+   * @param done called once the image is up to date or has failed
+   */
+  public void submitUpdate(final File file, final Runnable done) {
+    GalleryExecutor.getInstance().submit(new GalleryExecutor.StagedTask() {
+      /** The image, null if the file is gone. */
+      private ImageInfo imageInfo;
+      /** Its derivatives, null if none need to be made. */
+      private Derivatives job;
+
+      @Override
+      protected void read() throws IOException {
+        if (!file.isFile()) {
+          return;
+        }
+        imageInfo = new ImageInfo(file);
+        if (!synchronize(Collections.singletonList(imageInfo), false)
+          .isEmpty()) {
+          createDerivativeDirs();
+          job = prepareDerivatives(imageInfo, true);
+        }
+      }
+
+      @Override
+      protected void compute() throws IOException {
+        if (job != null) {
+          renderDerivatives(job, true);
+        }
+      }
+
+      @Override
+      protected void write() throws IOException {
+        if (imageInfo == null) {
+          removeImage(file.getName());
+          return;
+        }
+        if (job != null) {
+          completeDerivatives(job);
+        }
+        putImage(imageInfo);
+        saveManifest();
+      }
+
+      @Override
+      protected void done(final Exception failure) {
+        try {
+          if (failure != null) {
+            LOG.warning("Update failed for " + file + ": " + failure);
+            addMessage(failure.toString());
+          }
+        } finally {
+          done.run();
+        }
+      }
+    }, this, GalleryExecutor.Priority.BACKFILL);
+  }
+
+  /**
+   * Put an image in its place in the sorted gallery.
+   * @param imageInfo the image
+   */
+  private void putImage(final ImageInfo imageInfo) {
+    synchronized (this) {
+      final Map<String, ImageInfo> sorted =
+        new TreeMap<String, ImageInfo>(getRealImages());
+      sorted.put(imageInfo.getFilename(), imageInfo);
+      this.setImages(withBlankThumbnails(
+        new LinkedHashMap<String, ImageInfo>(sorted)));
+    }
+  }
+
+  /**
+   * Remove a single image and its derivatives, e.g. after the original was
+   * deleted.
+   * @param name the image file name
+   */
+  public void removeImage(final String name) {
+    synchronized (this) {
+      final Map<String, ImageInfo> real = getRealImages();
+      if (real.remove(name) == null) {
+        return;
+      }
+      this.setImages(withBlankThumbnails(real));
+    }
+    deleteDerivatives(name);
+    this.addMessage("Removed image: " + name);
+    setModified(true);
+    saveManifest();
+  }
+
+  /**
+   * Delete the preview, thumbnail, feed and EXIF files of an image.
+   * @param name the image file name
+   */
+  private void deleteDerivatives(final String name) {
+    final String[] paths = {
+      getPreviewDirPath() + name,
+      getPreviewDirPath() + name + ".exif",
+      getPreviewDirPath() + name + ".noexif",
+      getThumbDirPath() + name,
+      getFeedDirPath() + name};
+    for (String path : paths) {
+      final File derivative = new File(path);
+      if (derivative.exists() && !derivative.delete()) {
+        LOG.warning("Delete failed: ".concat(derivative.getName()));
+      }
     }
   }
+
   /**
    * @return the stopRequested
+   * @deprecated the flag applies to every gallery in the JVM, use
+   * GalleryBuild.isCancelled()
    */
+  @Deprecated
   public static boolean isStopRequested() {
     return stopRequested;
   }
 
   /**
    * @param aStopRequested the stopRequested to set
+   * @deprecated stops every gallery in the JVM until it is reset, use
+   * GalleryBuild.cancel()
    */
+  @Deprecated
   public static void setStopRequested(boolean aStopRequested) {
     stopRequested = aStopRequested;
   }
 
+  /**
+   * @return the contentHash
+   */
+  public Boolean getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * @param aContentHash the contentHash to set
+   */
+  public void setContentHash(Boolean aContentHash) {
+    contentHash = aContentHash;
+  }
+  /**
+   * @return true if thumbnail and feed images are made from the thumbnail
+   * embedded in the EXIF data when it is large enough
+   */
+  public Boolean getExifThumbnails() {
+    return exifThumbnails;
+  }
+
+  /**
+   * Make thumbnail and feed images from the thumbnail embedded in the EXIF
+   * data of JPEG originals, which avoids decoding the original. Images
+   * without a large enough embedded thumbnail are decoded as usual.
+   * @param inExifThumbnails true to use embedded thumbnails
+   */
+  public void setExifThumbnails(final Boolean inExifThumbnails) {
+    this.exifThumbnails = inExifThumbnails;
+  }
+
+
+  /**
+   * Get the scaler for a type of derivative.
+   * @param type the derivative type
+   * @return the scaler
+   */
+  public ImageScaler getScaler(final DerivativeType type) {
+    return scalers.get(type);
+  }
+
+  /**
+   * Set the scaler for a type of derivative, e.g. one of the ScalingMethods.
+   * @param type the derivative type
+   * @param scaler the scaler
+   */
+  public void setScaler(final DerivativeType type, final ImageScaler scaler) {
+    scalers.put(type, scaler);
+  }
+  /**
+   * Get the encoder settings for a type of derivative.
+   * @param type the derivative type
+   * @return the settings
+   */
+  public EncoderSettings getEncoderSettings(final DerivativeType type) {
+    return encoders.get(type);
+  }
+
+  /**
+   * Set the encoder settings for a type of derivative.
+   * @param type the derivative type
+   * @param settings quality and progressive mode
+   */
+  public void setEncoderSettings(final DerivativeType type,
+    final EncoderSettings settings) {
+    encoders.put(type, settings);
+  }
+
+
   /**
    * @return the rotateImages
    */
@@ -733,8 +1196,9 @@ public class ImageGallery implements java.io.Serializable {
     return images;
   }
 
-  private void setImages(LinkedHashMap<String, ImageInfo> images) {
+  private void setImages(Map<String, ImageInfo> images) {
     this.images = images;
+    touch();
   }
 
   public int getThumbnailX() {
@@ -869,8 +1333,12 @@ public class ImageGallery implements java.io.Serializable {
     this.messages.add(inMessage);
   }
 
-  public void addImage(String imageName, ImageInfo imageInfo) {
-    this.images.put(imageName, imageInfo);
+  public synchronized void addImage(String imageName, ImageInfo imageInfo) {
+    final Map<String, ImageInfo> updated =
+      new LinkedHashMap<String, ImageInfo>(this.images);
+    updated.put(imageName, imageInfo);
+    this.images = updated;
+    touch();
   }
 
   public String getImageDirPath() {
@@ -881,6 +1349,33 @@ public class ImageGallery implements java.io.Serializable {
     this.imageDirPath = imageDirPath;
   }
 
+  /**
+   * Get the version of the gallery contents. Every change to the images or
+   * their derivatives gives the gallery a new version, which is never
+   * shared with another gallery, so it can key anything rendered from it.
+   * @return the version
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Get the modification time of the newest image in the gallery.
+   * @return the time in ms, or 0 if there are no images
+   */
+  public long getLastModified() {
+    long newest = 0;
+    for (ImageInfo image : images.values()) {
+      newest = Math.max(newest, image.getLastModified());
+    }
+    return newest;
+  }
+
+  /** Give the gallery a new version. */
+  private void touch() {
+    version = VERSIONS.incrementAndGet();
+  }
+
   /**
    * @return the modified
    */
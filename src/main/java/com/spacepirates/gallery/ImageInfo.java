@@ -39,6 +39,9 @@ public class ImageInfo implements java.io.Serializable, java.lang.Comparable {
 
   private String url;
   private boolean exifPresent = false;
+  private long length;
+  private long lastModified;
+  private int orientation;
   private ImageInfo previewInfo;
   private ImageInfo thumbnailInfo;
   private ImageInfo feedInfo;
@@ -157,6 +160,48 @@ public class ImageInfo implements java.io.Serializable, java.lang.Comparable {
     this.exifPresent = exifPresent;
   }
 
+  /**
+   * @return the size of the file in bytes, as of the last scan
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * @param length the size of the file in bytes
+   */
+  public void setLength(long length) {
+    this.length = length;
+  }
+
+  /**
+   * @return the modification time of the file, as of the last scan
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * @param lastModified the modification time of the file
+   */
+  public void setLastModified(long lastModified) {
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * @return the EXIF orientation, 0 if not known
+   */
+  public int getOrientation() {
+    return orientation;
+  }
+
+  /**
+   * @param orientation the EXIF orientation
+   */
+  public void setOrientation(int orientation) {
+    this.orientation = orientation;
+  }
+
   /**
    * @return the feedInfo
    */
@@ -0,0 +1,40 @@
+/*
+ * ImageScaler.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Resizes a decoded image to the size of a derivative. Implementations must
+ * be thread safe, a gallery shares one scaler between all its threads.
+ *
+ * @author scott
+ * @see ScalingMethod
+ */
+public interface ImageScaler {
+
+  /**
+   * Scale an image.
+   * @param bImage the image to be scaled
+   * @param width scaled width
+   * @param height scaled height
+   * @return an RGB image of the requested size, which may be leased from
+   * the RasterPool of the calling thread; give it back with
+   * RasterPool.release() once it is no longer used
+   */
+  BufferedImage scale(BufferedImage bImage, int width, int height);
+}
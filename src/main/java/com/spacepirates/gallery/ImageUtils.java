@@ -4,15 +4,9 @@
  */
 package com.spacepirates.gallery;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.geom.AffineTransform;
-import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
-import java.io.FileInputStream;
 import java.io.IOException;
 import javax.imageio.ImageIO;
-import javax.imageio.stream.FileCacheImageInputStream;
 
 /**
  *
@@ -37,7 +31,7 @@ public class ImageUtils {
   }
    */
   /**
-   * Scale an image.
+   * Scale an image with the default scaler.
    * @param image the image info wrapping the image
    * @param bImage the buffered image
    * @param width the scaled width
@@ -47,6 +41,21 @@ public class ImageUtils {
   public final ImageInfo scaleImage(final ImageInfo image,
     final BufferedImage bImage,
     final Integer width, final Integer height) {
+    return scaleImage(image, bImage, width, height, ScalingMethod.BICUBIC);
+  }
+
+  /**
+   * Scale an image.
+   * @param image the image info wrapping the image
+   * @param bImage the buffered image
+   * @param width the scaled width
+   * @param height the scaled height
+   * @param scaler the scaler to use
+   * @return the image info for the scaled image
+   */
+  public final ImageInfo scaleImage(final ImageInfo image,
+    final BufferedImage bImage,
+    final Integer width, final Integer height, final ImageScaler scaler) {
 
     final ImageInfo scaledImage = new ImageInfo();
 
@@ -73,10 +82,10 @@ public class ImageUtils {
         scaledImage.setWidth(preX);
         scaledImage.setHeight(preY);
 
-        final BufferedImage bScaledImage =
-          this.getScaledBufferedImage(bImage, preX, preY);
+        final BufferedImage bScaledImage = scaler.scale(bImage, preX, preY);
         ImageIO.write(
           bScaledImage, image.getExtention(), scaledImage.getFile());
+        RasterPool.release(bScaledImage);
       } else {
         scaledImage.setFile(image.getFile());
         //scaledImage.setUrl(this.getImageFileURL(image));
@@ -89,87 +98,79 @@ public class ImageUtils {
   }
 
   /**
-   * Scale an image.
-   * @param bImage the image to be scaled
-   * @param width scaled width
-   * @param height scaled height
-   * @return scaled BufferedImage
-   */
-  private BufferedImage getScaledBufferedImage(final BufferedImage bImage,
-    final int width, final int height) {
-    final Image scaledImage =
-      bImage.getScaledInstance(width, height, java.awt.Image.SCALE_SMOOTH);
-    final BufferedImage bsImage =
-      new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-    final Graphics2D g2d = bsImage.createGraphics();
-    g2d.drawImage(scaledImage, 0, 0, null);
-    return bsImage;
-  }
-
-  /**
-   * Rotate an image, saves the File.
-   * @param imageInfo ImageInfo for the image file
-   * @param degrees Degrees or rotation
+   * Turn a raster the way its EXIF orientation says it should be displayed.
+   * This only touches pixels in memory, it is meant for the small rasters
+   * derivatives are made from, the original file is never changed.
+   * http://www.impulseadventure.com/photo/exif-orientation.html
+   * @param image the raster as stored
+   * @param orientation the EXIF orientation, 1 to 8
+   * @return the raster as displayed, leased from the RasterPool, or the same
+   * raster if nothing is to be done
    */
-  public static void rotateImage(final ImageInfo imageInfo,
-    final Integer degrees) {
-    FileInputStream fis = null;
-    BufferedImage inImage = null;
-    BufferedImage outImage = null;
-    try {
-
-      fis = new FileInputStream(imageInfo.getFile());
-      FileCacheImageInputStream iis = new FileCacheImageInputStream(fis, null);
-
-      inImage = ImageIO.read(iis);
-      int outWidth = inImage.getWidth();
-      int outHeight = inImage.getHeight();
-      if (degrees == Math.abs(90)) {
-        outWidth = inImage.getHeight();
-        outHeight = inImage.getWidth();
-      }
-      AffineTransform rotateTransform = AffineTransform.getRotateInstance(
-        degrees * Math.PI / 180.0, inImage.getWidth() / 2.0, inImage.getHeight() / 2.0);
-      AffineTransform translationTransform;
-      translationTransform = findTranslation(rotateTransform, inImage);
-      rotateTransform.preConcatenate(translationTransform);
-      outImage = new BufferedImage(outWidth, outHeight, inImage.getType());
-      Graphics2D g2d = (Graphics2D) outImage.getGraphics();
-
-      g2d.drawImage(inImage, rotateTransform, null);
-      g2d.dispose();
-      ImageIO.write(outImage, "JPEG", imageInfo.getFile());
-
-    } catch (IOException ex) {
-    } finally {
-      try {
-        fis.close();
-      } catch (IOException ex) {
+  public static BufferedImage orient(final BufferedImage image,
+    final int orientation) {
+    if (orientation < 2 || orientation > 8) {
+      return image;
+    }
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+    final boolean transposed = isTransposed(orientation);
+    final int outWidth = transposed ? height : width;
+    final int outHeight = transposed ? width : height;
+    final int[] in;
+    if (image.getType() == BufferedImage.TYPE_INT_RGB
+      && image.getRaster().getParent() == null
+      && image.getRaster().getDataBuffer().getSize() == width * height) {
+      in = RasterPool.getPixels(image);
+    } else {
+      in = image.getRGB(0, 0, width, height, null, 0, width);
+    }
+    final BufferedImage oriented = RasterPool.acquire(outWidth, outHeight);
+    final int[] out = RasterPool.getPixels(oriented);
+    for (int y = 0; y < outHeight; y++) {
+      for (int x = 0; x < outWidth; x++) {
+        final int sx, sy;
+        switch (orientation) {
+          case 2: // mirrored horizontally
+            sx = width - 1 - x;
+            sy = y;
+            break;
+          case 3: // rotated 180 degrees
+            sx = width - 1 - x;
+            sy = height - 1 - y;
+            break;
+          case 4: // mirrored vertically
+            sx = x;
+            sy = height - 1 - y;
+            break;
+          case 5: // transposed
+            sx = y;
+            sy = x;
+            break;
+          case 6: // rotate 90 degrees CW
+            sx = y;
+            sy = height - 1 - x;
+            break;
+          case 7: // transversed
+            sx = width - 1 - y;
+            sy = height - 1 - x;
+            break;
+          default: // 8, rotate 90 degrees CCW
+            sx = width - 1 - y;
+            sy = x;
+            break;
+        }
+        out[y * outWidth + x] = in[sy * width + sx];
       }
     }
+    return oriented;
   }
 
   /**
-   * Generate a transformation of a buffered image, e.g. change height and
-   * width.
-   * @param aTransform initial transform
-   * @param image the image to be transformed
-   * @return the AffineTransform
+   * @param orientation an EXIF orientation
+   * @return true if width and height are swapped for display
    */
-  private static AffineTransform findTranslation(
-    final AffineTransform aTransform, final BufferedImage image) {
-    Point2D p2din, p2dout;
-
-    p2din = new Point2D.Double(0.0, 0.0);
-    p2dout = aTransform.transform(p2din, null);
-    final double ytrans = p2dout.getY();
-
-    p2din = new Point2D.Double(0, image.getHeight());
-    p2dout = aTransform.transform(p2din, null);
-    final double xtrans = p2dout.getX();
-
-    final AffineTransform tat = new AffineTransform();
-    tat.translate(-xtrans, -ytrans);
-    return tat;
+  public static boolean isTransposed(final int orientation) {
+    return orientation >= 5 && orientation <= 8;
   }
 }
@@ -20,7 +20,9 @@ package com.spacepirates.gallery;
 
 import com.spacepirates.swing.chooser.ImageChooser;
 import java.io.File;
+import java.util.function.BiConsumer;
 import javax.swing.JFileChooser;
+import javax.swing.SwingUtilities;
 
 /**
  *
@@ -32,6 +34,7 @@ public class LazyGalleryMaker extends javax.swing.JFrame {
   private Boolean useThreads = false;
   private Boolean useLowerCase = false;
   private ImageGallery imageGallery = new ImageGallery();
+  private GalleryBuild build;
   private Boolean rotateImages = false;
 
   /** Creates new form LazyGalleryMaker */
@@ -255,19 +258,55 @@ public class LazyGalleryMaker extends javax.swing.JFrame {
     }//GEN-LAST:event_imageDirectoryTextFieldActionPerformed
 
     private void createGalleryButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_createGalleryButtonActionPerformed
-      imageGallery = new ImageGallery();
-      imageGallery.setGalleryRoot("/");
-      imageGallery.setLowerCaseNames(useLowerCase);
-      imageGallery.setRotateImages(rotateImages);
-      imageGallery.init(this.imageDirectoryTextField.getText(), 6, true, useThreads);
-      StringBuilder sb = new StringBuilder();
-      for (String message : imageGallery.getMessages()) {
-        sb.append(message);
-        sb.append("\n");
+      if (build != null && !build.isDone()) {
+        build.cancel();
       }
-      this.messagesTextArea.setText(sb.toString());
+      build = ImageGallery.builder(this.imageDirectoryTextField.getText())
+        .galleryRoot("/").lowerCaseNames(useLowerCase)
+        .rotateImages(rotateImages).feedThumbnails(true)
+        .useThreads(useThreads).start();
+      imageGallery = build.getGallery();
+      showMessages();
+      final GalleryBuild started = build;
+      build.getFuture().whenComplete(
+        new BiConsumer<ImageGallery, Throwable>() {
+          @Override
+          public void accept(final ImageGallery gallery,
+            final Throwable failure) {
+            SwingUtilities.invokeLater(new Runnable() {
+              @Override
+              public void run() {
+                if (started == build) {
+                  showMessages();
+                }
+              }
+            });
+          }
+        });
     }//GEN-LAST:event_createGalleryButtonActionPerformed
 
+  /**
+   * Show the messages of the gallery and how far its build is.
+   */
+  private void showMessages() {
+    StringBuilder sb = new StringBuilder();
+    for (String message : imageGallery.getMessages()) {
+      sb.append(message);
+      sb.append("\n");
+    }
+    if (build.isCancelled()) {
+      sb.append("Cancelled after ");
+    } else if (build.isDone()) {
+      sb.append("Done: ");
+    } else {
+      sb.append("Working: ");
+    }
+    sb.append(build.getCompleted()).append(" of ").append(build.getTotal());
+    sb.append(" images processed, ").append(build.getFailed());
+    sb.append(" failed\n");
+    this.messagesTextArea.setText(sb.toString());
+  }
+
     private void useThreadsCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_useThreadsCheckBoxActionPerformed
       if (useThreads) {
         useThreads = false;
@@ -285,7 +324,9 @@ public class LazyGalleryMaker extends javax.swing.JFrame {
     }//GEN-LAST:event_lowercaseCheckBoxActionPerformed
 
     private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
-      ImageGallery.setStopRequested(true);
+      if (build != null) {
+        build.cancel();
+      }
     }//GEN-LAST:event_cancelButtonActionPerformed
 
     private void autoRotateCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_autoRotateCheckBoxActionPerformed
@@ -0,0 +1,267 @@
+/*
+ * MappedImageInputStream.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Image stream which reads a file through a read-only memory mapping, so
+ * decoding neither copies the file to a cache in the temp directory nor
+ * makes a system call for every small read. The file descriptor is closed
+ * as soon as the file is mapped, and close() releases the mapping right
+ * away rather than when the buffer is garbage collected. Files too large
+ * for a single mapping are read through a plain file stream instead.
+ *
+ * @author scott
+ */
+public final class MappedImageInputStream extends ImageInputStreamImpl {
+
+  /** Largest file a single mapping can hold. */
+  private static final long MAX_MAPPED = Integer.MAX_VALUE;
+  /** Size of the buffer for files read without a mapping. */
+  private static final int BUFFER = 64 * 1024;
+  /** Object the unmap method is called on, null for a static method. */
+  private static final Object UNMAPPER;
+  /** Method releasing a mapping, null if the JVM does not offer one. */
+  private static final Method UNMAP;
+
+  static {
+    Object unmapper = null;
+    Method unmap = null;
+    try {
+      // Java 9 and later
+      final Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+      final Field field = unsafe.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unmapper = field.get(null);
+      unmap = unsafe.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (Exception e) {
+      try {
+        // Java 8
+        unmapper = null;
+        unmap = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      } catch (Exception e8) {
+        unmap = null;
+      }
+    }
+    UNMAPPER = unmapper;
+    UNMAP = unmap;
+  }
+
+  /** The mapped file, null once closed. */
+  private MappedByteBuffer buffer;
+
+  /**
+   * Map a file. Use open() for files which may be too large to map.
+   * @param file the file
+   * @throws IOException if the file can not be mapped
+   */
+  public MappedImageInputStream(final File file) throws IOException {
+    final FileInputStream in = new FileInputStream(file);
+    try {
+      final FileChannel channel = in.getChannel();
+      final long size = channel.size();
+      if (size > MAX_MAPPED) {
+        throw new IOException("Too large to map: " + file.getName());
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      // the mapping stays valid without the descriptor
+      in.close();
+    }
+  }
+
+  /**
+   * Open an image stream on a file, mapped unless it is too large.
+   * @param file the file
+   * @return the stream, to be closed by the caller
+   * @throws IOException if the file can not be opened
+   */
+  public static ImageInputStream open(final File file) throws IOException {
+    if (file.length() > MAX_MAPPED) {
+      return new FileImageInputStream(file);
+    }
+    return new MappedImageInputStream(file);
+  }
+
+  /**
+   * Open a plain input stream on a file, mapped unless it is too large, e.g.
+   * for metadata-extractor.
+   * @param file the file
+   * @return the stream, to be closed by the caller
+   * @throws IOException if the file can not be opened
+   */
+  public static InputStream openStream(final File file) throws IOException {
+    if (file.length() > MAX_MAPPED) {
+      return new BufferedInputStream(new FileInputStream(file), BUFFER);
+    }
+    return new MappedImageInputStream(file).new Input();
+  }
+
+  /**
+   * Read a file into the page cache, so that decoding it later does not wait
+   * for the disk or file server. Nothing is kept by the JVM.
+   * @param file the file
+   * @throws IOException if the file can not be read
+   */
+  public static void prefetch(final File file) throws IOException {
+    final long length = file.length();
+    if (length == 0 || length > MAX_MAPPED) {
+      return;
+    }
+    final MappedImageInputStream stream = new MappedImageInputStream(file);
+    try {
+      stream.buffer.load();
+    } finally {
+      stream.close();
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    checkClosed();
+    bitOffset = 0;
+    if (streamPos >= buffer.limit()) {
+      return -1;
+    }
+    return buffer.get((int) streamPos++) & 0xff;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+    throws IOException {
+    checkClosed();
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    bitOffset = 0;
+    if (len == 0) {
+      return 0;
+    }
+    final long remaining = buffer.limit() - streamPos;
+    if (remaining <= 0) {
+      return -1;
+    }
+    final int count = (int) Math.min(len, remaining);
+    buffer.position((int) streamPos);
+    buffer.get(b, off, count);
+    streamPos += count;
+    return count;
+  }
+
+  @Override
+  public long length() {
+    final ByteBuffer mapped = buffer;
+    return mapped == null ? -1L : mapped.limit();
+  }
+
+  @Override
+  public boolean isCached() {
+    return true;
+  }
+
+  @Override
+  public boolean isCachedMemory() {
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (buffer == null) {
+      return;
+    }
+    super.close();
+    final MappedByteBuffer mapped = buffer;
+    buffer = null;
+    unmap(mapped);
+  }
+
+  /**
+   * Release a mapping now. Every read checks the stream is open first, so
+   * the memory is never touched afterwards. Without a way to do this the
+   * mapping goes when the buffer is garbage collected.
+   * @param mapped the mapping
+   */
+  private static void unmap(final MappedByteBuffer mapped) {
+    if (UNMAP == null) {
+      return;
+    }
+    try {
+      if (UNMAPPER != null) {
+        UNMAP.invoke(UNMAPPER, mapped);
+      } else {
+        final Method cleaner = mapped.getClass().getMethod("cleaner");
+        cleaner.setAccessible(true);
+        final Object clean = cleaner.invoke(mapped);
+        if (clean != null) {
+          UNMAP.invoke(clean);
+        }
+      }
+    } catch (Exception e) {
+      // left to the garbage collector
+    }
+  }
+
+  /**
+   * Plain input stream view of the mapped file, closing it closes the
+   * mapping.
+   */
+  private final class Input extends InputStream {
+
+    @Override
+    public int read() throws IOException {
+      return MappedImageInputStream.this.read();
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+      return MappedImageInputStream.this.read(b, off, len);
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      checkClosed();
+      final long skipped = Math.max(0, Math.min(n, length() - streamPos));
+      streamPos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      checkClosed();
+      return (int) Math.max(0, length() - streamPos);
+    }
+
+    @Override
+    public void close() throws IOException {
+      MappedImageInputStream.this.close();
+    }
+  }
+}
@@ -20,32 +20,67 @@
 
 package com.spacepirates.gallery;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
 
 /**
+ * Generates the media RSS feed of a gallery and the HTML link to it. The
+ * feed file is only rewritten when its images or the feed options changed,
+ * by one request at a time per feed file; the XML of each item is
+ * kept between runs so only new or changed images are serialized again.
+ * The state of the least recently used feeds is dropped beyond a bound on
+ * the number of feeds and the characters of item XML held.
  *
  * @author scott
  */
 public class PhotoFeed {
 
+  /** Logger for this class. */
+  private static final Logger LOG =
+    Logger.getLogger(PhotoFeed.class.getName());
   private String feedIcon = "images/feed/photo-feed.png";
   private String rssFileName = "lazygallery.rss";
   private String format = "EEE, dd MMM yyyy HH:mm:ss z";
-  private StringBuilder rss = new StringBuilder();
   private StringBuilder link = new StringBuilder();
   private static final String GENERATOR = "    <generator>LazyGallery, http://swdouglass.com/wiki/Wiki.jsp?page=LazyGallery, Copyright 2005-2009, Scott Douglass</generator>\n";
+  /** Encoding of the feed file. */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /** Most feeds whose state is kept. */
+  private static final int MAX_FEEDS = 64;
+  /** Most characters of item XML kept across all feeds. */
+  private static final long MAX_CHARS = 8L * 1024 * 1024;
+  /** Feed state by feed file path, least recently used first. */
+  private static final Map<String, FeedState> STATES =
+    new LinkedHashMap<String, FeedState>(16, 0.75f, true);
+  /**
+   * Locks for writing feed files, picked by the hash of the file path. They
+   * are not kept in STATES, whose states can be dropped while held.
+   */
+  private static final Object[] LOCKS = new Object[32];
+
+  static {
+    for (int i = 0; i < LOCKS.length; i++) {
+      LOCKS[i] = new Object();
+    }
+  }
 
   public PhotoFeed() {
   }
 
   public PhotoFeed(HttpImageGallery hig) {
-    SimpleDateFormat sdf = new SimpleDateFormat(format);
-    String now = sdf.format(new Date());
     String baseURL = hig.getBaseURL();
     // generate HTML for the link
     link.append("\n<div class=\"photofeed\">\n");
@@ -64,164 +99,326 @@ public class PhotoFeed {
 
     File rssFile = new File(hig.getImageGallery().getImageDirPath() +
             ImageGallery.FILE_SEP + rssFileName);
-    
-    if (! rssFile.exists() || hig.getImageGallery().isModified()) {
-      // write the RSS to a file
-      rss.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-      rss.append("<rss version=\"2.0\"\n");
-      //rss.append("  xmlns:photo=\"http://www.pheed.com/pheed/\"\n");
-      rss.append("  xmlns:dc=\"http://purl.org/dc/elements/1.1/\"\n");
-      rss.append("  xmlns:media=\"http://search.yahoo.com/mrss/\">\n");
-      rss.append("  <channel>\n");
-      rss.append("    <title>");
-      rss.append(hig.getTitle());
-      rss.append("</title>\n");
-      rss.append("    <description>");
-      rss.append("LazyGallery PhotoFeed: ");
-      rss.append(hig.getCaption().replaceAll("\\<.*?\\>", "")); // strip HTML
-      rss.append("</description>\n");
-      rss.append("    <link>");
-      rss.append(hig.getLinkURL());
-      rss.append("</link>\n");
-      rss.append("    <language>");
-      rss.append(hig.getLangCode());
-      rss.append("</language>\n");
-      /*rss.append("    <image>\n");
-      rss.append("      <url></url>\n");
-      rss.append("      <title></title>\n");
-      rss.append("      <link></link>\n");
-      rss.append("      <description></description>\n");
-      rss.append("    </image>\n");*/
-      rss.append(GENERATOR);
-      rss.append("    <lastBuildDate>");
-      rss.append(now);
-      rss.append("</lastBuildDate>\n");
-      rss.append("    <pubDate>");
-      rss.append(now);
-      rss.append("</pubDate>\n");
-
-      // now iterate of the ImageInfos and build the items
-      for (ImageInfo image : hig.getImageGallery().getImages().values()) {
-        if (image.getTitle() != null && image.getTitle().startsWith("blank")) {
-          // skip
-        } else {
-          rss.append("    <item>\n");
-          rss.append("      <title>");
-          rss.append(image.getFilename());
-          rss.append("</title>\n");
-          rss.append("      <link>");
-          rss.append(baseURL);
-          rss.append(hig.getImageContext());
-          rss.append(hig.getImageGallery().getImageFileURL(image));
-          rss.append("</link>\n");
-          rss.append("      <guid isPermalink=\"true\">");
-          rss.append(baseURL);
-          rss.append(hig.getImageContext());
-          rss.append(hig.getImageGallery().getImageFileURL(image));
-          rss.append("</guid>\n");
-          /*
-          rss.append("      <photo:imgsrc>");
-          rss.append(baseURL);
-          rss.append(hig.getImageContext());
-          rss.append(hig.getImageGallery().getPreviewFileURL(image));
-          rss.append("</photo:imgsrc>\n");
-          rss.append("      <photo:thumbnail>");
-          rss.append(baseURL);
-          rss.append(hig.getImageContext());
-          rss.append(hig.getImageGallery().getThumbnailFileURL(image));
-          rss.append("</photo:thumbnail>\n");
-          */
-          // the description will have the thumbnail image
-          rss.append("      <description>");
-          rss.append("<![CDATA[<table><tr><td><img src=\"");
-          rss.append(baseURL);
-          rss.append(hig.getImageContext());
-          rss.append(hig.getImageGallery().getThumbnailFileURL(image));
-          rss.append("\" alt=\"");
-          rss.append(image.getFilename());
-          rss.append("\"></td><td>");
-          rss.append(image.getFilename());
-          rss.append("</td></tr></table>]]>");
-          rss.append("</description>\n");
-          rss.append("      <pubDate>");
-          rss.append(now);
-          rss.append("</pubDate>\n");
-          // using Media RSS standard name space (as used by picasa generated photo feed.
-          rss.append("      <media:group>\n");
-          rss.append("        <media:title type='plain'>");
-          rss.append(image.getFilename());
-          rss.append("</media:title>\n");
-          rss.append("        <media:description type='plain'></media:description>\n");
-          rss.append("        <media:keywords></media:keywords>\n");
-          rss.append("        <media:content url='");
-          rss.append(baseURL);
-          rss.append(hig.getImageContext());
-          rss.append(hig.getImageGallery().getImageFileURL(image));
-          //FIXME I don't actually have the original image's pixel dimensions...
-          /*rss.append(" height='");
-          rss.append(image.getHeight()); //image height
-          rss.append("' width='");
-          rss.append(image.getWidth()); //image width
-          rss.append("'");*/
-          rss.append("' type='image/jpeg' medium='image' />\n");
-
-          // rss feed thumbnail (smallest)
-          rss.append("        <media:thumbnail url='");
-          rss.append(baseURL);
-          rss.append(hig.getImageContext());
-          rss.append(hig.getImageGallery().getFeedFileURL(image));
-          rss.append("' height='");
-          rss.append(hig.getImageGallery().getFeedY()); //image height
-          rss.append("' width='");
-          rss.append(hig.getImageGallery().getFeedX()); //image width
-          rss.append("' />\n");
-
-          // next thumbnail
-          rss.append("        <media:thumbnail url='");
-          rss.append(baseURL);
-          rss.append(hig.getImageContext());
-          rss.append(hig.getImageGallery().getThumbnailFileURL(image));
-          rss.append("' height='");
-          rss.append(hig.getImageGallery().getThumbnailY()); //image height
-          rss.append("' width='");
-          rss.append(hig.getImageGallery().getThumbnailX()); //image width
-          rss.append("' />\n");
-
-          // preview = thumbnail for this
-          rss.append("        <media:thumbnail url='");
-          rss.append(baseURL);
-          rss.append(hig.getImageContext());
-          rss.append(hig.getImageGallery().getPreviewFileURL(image));
-          rss.append("' height='");
-          rss.append(hig.getImageGallery().getPreviewY()); //image height
-          rss.append("' width='");
-          rss.append(hig.getImageGallery().getPreviewX()); //image width
-          rss.append("' />\n");  
-           
-          rss.append("        <media:credit>");
-          rss.append(hig.getAuthor());
-          rss.append("</media:credit>\n");
-          rss.append("      </media:group>\n");
-
-          rss.append("    </item>\n");
+    final String path = rssFile.getPath();
+    // Requests which find the feed being written wait for it and then see
+    // that it is current, so only one of them does the work. What is
+    // compared is what the file is written from rather than the gallery
+    // version, so galleries of one directory which differ only in settings
+    // the feed does not use, e.g. thumbsPerRow, share the file as it is.
+    synchronized (LOCKS[(path.hashCode() & 0x7fffffff) % LOCKS.length]) {
+      final FeedState state = getState(path);
+      final List<ImageInfo> feedImages = getFeedImages(hig);
+      final long images = getDigest(feedImages);
+      final String options = getOptions(hig);
+      final String context = getContext(hig);
+      if (rssFile.exists() && state.images == images
+        && options.equals(state.options) && context.equals(state.context)) {
+        return;
+      }
+      try {
+        FileUtils.writeAtomic(rssFile,
+          this.renderFeed(hig, state, feedImages, context).getBytes(UTF8));
+        state.images = images;
+        state.options = options;
+      } catch (IOException e) {
+        LOG.warning("Can not write " + rssFile + ": "
+          + e.getLocalizedMessage());
+      }
+    }
+  }
+
+  /**
+   * Get the state of a feed, creating it if needed and dropping the least
+   * recently used states beyond the bounds.
+   * @param path the feed file path
+   * @return the state
+   */
+  private static FeedState getState(final String path) {
+    synchronized (STATES) {
+      FeedState state = STATES.get(path);
+      if (state == null) {
+        state = new FeedState();
+        STATES.put(path, state);
+      }
+      long chars = 0;
+      for (FeedState held : STATES.values()) {
+        chars += held.chars;
+      }
+      final Iterator<FeedState> it = STATES.values().iterator();
+      while ((STATES.size() > MAX_FEEDS || chars > MAX_CHARS)
+        && it.hasNext()) {
+        final FeedState eldest = it.next();
+        if (eldest != state) {
+          chars -= eldest.chars;
+          it.remove();
         }
       }
+      return state;
+    }
+  }
 
-      // end items
+  /**
+   * @param hig the gallery
+   * @return the options the feed depends on apart from its images
+   */
+  private static String getOptions(final HttpImageGallery hig) {
+    return hig.getTitle() + '\0' + hig.getCaption() + '\0'
+      + hig.getLinkURL() + '\0' + hig.getLangCode() + '\0'
+      + hig.getFeedItems();
+  }
 
-      rss.append("  </channel>\n");
-      rss.append("</rss>");
+  /**
+   * @param hig the gallery
+   * @return everything apart from the image which the items depend on
+   */
+  private static String getContext(final HttpImageGallery hig) {
+    final ImageGallery gallery = hig.getImageGallery();
+    return hig.getBaseURL() + '\0' + hig.getImageContext() + '\0'
+      + hig.getAuthor() + '\0' + gallery.getImageDirName() + '\0'
+      + gallery.getFeedX() + 'x' + gallery.getFeedY() + '\0'
+      + gallery.getThumbnailX() + 'x' + gallery.getThumbnailY() + '\0'
+      + gallery.getPreviewX() + 'x' + gallery.getPreviewY();
+  }
 
-      // write the feed file
-      try {
-        BufferedWriter out = new BufferedWriter(new FileWriter(rssFile));
-        out.write(rss.toString());
-        out.close();
-      } catch (IOException e) {
-        System.out.println("error: " + e.getLocalizedMessage());
-        //e.printStackTrace();
+  /**
+   * @param feedImages the images of the feed
+   * @return a digest of their names and modification times, in order
+   */
+  private static long getDigest(final List<ImageInfo> feedImages) {
+    long digest = feedImages.size();
+    for (ImageInfo image : feedImages) {
+      digest = 31 * digest + image.getFilename().hashCode();
+      digest = 31 * digest + image.getLastModified();
+    }
+    return digest;
+  }
+
+  /**
+   * Select the images of the feed.
+   * @param hig the gallery
+   * @return the images with derivatives, the newest only if the number of
+   * feed items is limited, in gallery order
+   */
+  private static List<ImageInfo> getFeedImages(final HttpImageGallery hig) {
+    final List<ImageInfo> feedImages = new ArrayList<ImageInfo>();
+    for (ImageInfo image : hig.getImageGallery().getImages().values()) {
+      if (image.getTitle() != null && image.getTitle().startsWith("blank")) {
+        // skip
+      } else if (image.getPreviewInfo() == null) {
+        // no derivatives yet, it is added once they are made
+      } else {
+        feedImages.add(image);
+      }
+    }
+    if (hig.getFeedItems() > 0 && feedImages.size() > hig.getFeedItems()) {
+      // keep the newest images, in gallery order
+      final List<ImageInfo> newest = new ArrayList<ImageInfo>(feedImages);
+      Collections.sort(newest, new Comparator<ImageInfo>() {
+        @Override
+        public int compare(final ImageInfo a, final ImageInfo b) {
+          return Long.compare(b.getLastModified(), a.getLastModified());
+        }
+      });
+      feedImages.retainAll(
+        new HashSet<ImageInfo>(newest.subList(0, hig.getFeedItems())));
+    }
+    return feedImages;
+  }
+
+  /**
+   * Render the whole feed, reusing the XML of items which have not changed
+   * since the last run.
+   * @param hig the gallery
+   * @param state the feed state, its lock held by the caller
+   * @param feedImages the images of the feed
+   * @param context what the items depend on apart from the image
+   * @return the RSS document
+   */
+  private String renderFeed(final HttpImageGallery hig,
+    final FeedState state, final List<ImageInfo> feedImages,
+    final String context) {
+    final SimpleDateFormat sdf = new SimpleDateFormat(format);
+    final String now = sdf.format(new Date());
+    final String baseURL = hig.getBaseURL();
+
+    if (!context.equals(state.context)) {
+      state.items.clear();
+      state.context = context;
+    }
+
+    final Map<String, Item> items = new HashMap<String, Item>();
+    int size = 0;
+    for (ImageInfo image : feedImages) {
+      Item item = state.items.get(image.getFilename());
+      if (item == null || item.lastModified != image.getLastModified()) {
+        item = new Item(image.getLastModified(),
+          renderItem(hig, image, baseURL, sdf));
       }
+      items.put(image.getFilename(), item);
+      size += item.xml.length();
+    }
+    // forget images which left the feed
+    state.items.clear();
+    state.items.putAll(items);
+    state.chars = size;
+
+    final StringBuilder rss = new StringBuilder(size + 2048);
+    rss.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    rss.append("<rss version=\"2.0\"\n");
+    //rss.append("  xmlns:photo=\"http://www.pheed.com/pheed/\"\n");
+    rss.append("  xmlns:dc=\"http://purl.org/dc/elements/1.1/\"\n");
+    rss.append("  xmlns:media=\"http://search.yahoo.com/mrss/\">\n");
+    rss.append("  <channel>\n");
+    rss.append("    <title>");
+    rss.append(hig.getTitle());
+    rss.append("</title>\n");
+    rss.append("    <description>");
+    rss.append("LazyGallery PhotoFeed: ");
+    rss.append(hig.getCaption().replaceAll("\\<.*?\\>", "")); // strip HTML
+    rss.append("</description>\n");
+    rss.append("    <link>");
+    rss.append(hig.getLinkURL());
+    rss.append("</link>\n");
+    rss.append("    <language>");
+    rss.append(hig.getLangCode());
+    rss.append("</language>\n");
+    /*rss.append("    <image>\n");
+    rss.append("      <url></url>\n");
+    rss.append("      <title></title>\n");
+    rss.append("      <link></link>\n");
+    rss.append("      <description></description>\n");
+    rss.append("    </image>\n");*/
+    rss.append(GENERATOR);
+    rss.append("    <lastBuildDate>");
+    rss.append(now);
+    rss.append("</lastBuildDate>\n");
+    rss.append("    <pubDate>");
+    rss.append(now);
+    rss.append("</pubDate>\n");
+
+    for (ImageInfo image : feedImages) {
+      rss.append(items.get(image.getFilename()).xml);
     }
+
+    // end items
+
+    rss.append("  </channel>\n");
+    rss.append("</rss>");
+    return rss.toString();
+  }
+
+  /**
+   * Render one feed item.
+   * @param hig the gallery
+   * @param image the image
+   * @param baseURL the base URL of the site
+   * @param sdf the date format
+   * @return the item XML
+   */
+  private String renderItem(final HttpImageGallery hig, final ImageInfo image,
+    final String baseURL, final SimpleDateFormat sdf) {
+    final StringBuilder rss = new StringBuilder(2048);
+    rss.append("    <item>\n");
+    rss.append("      <title>");
+    rss.append(image.getFilename());
+    rss.append("</title>\n");
+    rss.append("      <link>");
+    rss.append(baseURL);
+    rss.append(hig.getImageContext());
+    rss.append(hig.getImageGallery().getImageFileURL(image));
+    rss.append("</link>\n");
+    rss.append("      <guid isPermalink=\"true\">");
+    rss.append(baseURL);
+    rss.append(hig.getImageContext());
+    rss.append(hig.getImageGallery().getImageFileURL(image));
+    rss.append("</guid>\n");
+    /*
+    rss.append("      <photo:imgsrc>");
+    rss.append(baseURL);
+    rss.append(hig.getImageContext());
+    rss.append(hig.getImageGallery().getPreviewFileURL(image));
+    rss.append("</photo:imgsrc>\n");
+    rss.append("      <photo:thumbnail>");
+    rss.append(baseURL);
+    rss.append(hig.getImageContext());
+    rss.append(hig.getImageGallery().getThumbnailFileURL(image));
+    rss.append("</photo:thumbnail>\n");
+    */
+    // the description will have the thumbnail image
+    rss.append("      <description>");
+    rss.append("<![CDATA[<table><tr><td><img src=\"");
+    rss.append(baseURL);
+    rss.append(hig.getImageContext());
+    rss.append(hig.getImageGallery().getThumbnailFileURL(image));
+    rss.append("\" alt=\"");
+    rss.append(image.getFilename());
+    rss.append("\"></td><td>");
+    rss.append(image.getFilename());
+    rss.append("</td></tr></table>]]>");
+    rss.append("</description>\n");
+    // the item is published when the image was, so it can be reused
+    rss.append("      <pubDate>");
+    rss.append(sdf.format(new Date(image.getLastModified())));
+    rss.append("</pubDate>\n");
+    // using Media RSS standard name space (as used by picasa generated photo feed.
+    rss.append("      <media:group>\n");
+    rss.append("        <media:title type='plain'>");
+    rss.append(image.getFilename());
+    rss.append("</media:title>\n");
+    rss.append("        <media:description type='plain'></media:description>\n");
+    rss.append("        <media:keywords></media:keywords>\n");
+    rss.append("        <media:content url='");
+    rss.append(baseURL);
+    rss.append(hig.getImageContext());
+    rss.append(hig.getImageGallery().getImageFileURL(image));
+    //FIXME I don't actually have the original image's pixel dimensions...
+    /*rss.append(" height='");
+    rss.append(image.getHeight()); //image height
+    rss.append("' width='");
+    rss.append(image.getWidth()); //image width
+    rss.append("'");*/
+    rss.append("' type='image/jpeg' medium='image' />\n");
+
+    // rss feed thumbnail (smallest)
+    rss.append("        <media:thumbnail url='");
+    rss.append(baseURL);
+    rss.append(hig.getImageContext());
+    rss.append(hig.getImageGallery().getFeedFileURL(image));
+    rss.append("' height='");
+    rss.append(hig.getImageGallery().getFeedY()); //image height
+    rss.append("' width='");
+    rss.append(hig.getImageGallery().getFeedX()); //image width
+    rss.append("' />\n");
+
+    // next thumbnail
+    rss.append("        <media:thumbnail url='");
+    rss.append(baseURL);
+    rss.append(hig.getImageContext());
+    rss.append(hig.getImageGallery().getThumbnailFileURL(image));
+    rss.append("' height='");
+    rss.append(hig.getImageGallery().getThumbnailY()); //image height
+    rss.append("' width='");
+    rss.append(hig.getImageGallery().getThumbnailX()); //image width
+    rss.append("' />\n");
+
+    // preview = thumbnail for this
+    rss.append("        <media:thumbnail url='");
+    rss.append(baseURL);
+    rss.append(hig.getImageContext());
+    rss.append(hig.getImageGallery().getPreviewFileURL(image));
+    rss.append("' height='");
+    rss.append(hig.getImageGallery().getPreviewY()); //image height
+    rss.append("' width='");
+    rss.append(hig.getImageGallery().getPreviewX()); //image width
+    rss.append("' />\n");
+
+    rss.append("        <media:credit>");
+    rss.append(hig.getAuthor());
+    rss.append("</media:credit>\n");
+    rss.append("      </media:group>\n");
+
+    rss.append("    </item>\n");
+    return rss.toString();
   }
 
   @Override
@@ -242,4 +439,40 @@ public class PhotoFeed {
   public void setFeedIcon(String feedIcon) {
     this.feedIcon = feedIcon;
   }
+
+  /**
+   * What was written to a feed file, guarded by its lock in LOCKS.
+   */
+  private static final class FeedState {
+    /** Digest of the images the file was written from. */
+    private long images = 0;
+    /** Feed options the file was written with, null if not known. */
+    private String options;
+    /** Characters of item XML held, read under the STATES lock. */
+    private volatile long chars = 0;
+    /** Everything apart from the image which the items depend on. */
+    private String context;
+    /** Rendered items by image file name. */
+    private final Map<String, Item> items = new HashMap<String, Item>();
+  }
+
+  /**
+   * The rendered XML of one feed item.
+   */
+  private static final class Item {
+    /** Modification time of the image it was rendered for. */
+    private final long lastModified;
+    /** The item XML. */
+    private final String xml;
+
+    /**
+     * Create an item.
+     * @param inLastModified modification time of the image
+     * @param inXml the item XML
+     */
+    Item(final long inLastModified, final String inXml) {
+      lastModified = inLastModified;
+      xml = inXml;
+    }
+  }
 }
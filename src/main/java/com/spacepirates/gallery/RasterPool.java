@@ -0,0 +1,186 @@
+/*
+ * RasterPool.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * RGB rasters and scratch arrays kept per thread, so that scaling a batch of
+ * images reuses the same few preview, thumbnail and feed sized buffers
+ * instead of allocating new ones for every derivative. A raster is leased
+ * with acquire() and handed back with release() once it has been encoded;
+ * until then no one else gets it. Only rasters up to a bound are kept, so
+ * a thread never holds on to the memory of a large decode.
+ *
+ * @author scott
+ */
+public final class RasterPool {
+
+  /** Number of scratch arrays a thread keeps. */
+  public static final int SCRATCH_SLOTS = 4;
+  /** Most pixels of pooled rasters one thread keeps. */
+  private static final long MAX_POOLED_PIXELS = 2L * 1024 * 1024;
+  /** Largest scratch array one thread keeps, in ints. */
+  private static final int MAX_SCRATCH = 1024 * 1024;
+
+  /** Pools of this thread. */
+  private static final ThreadLocal<RasterPool> POOLS =
+    new ThreadLocal<RasterPool>() {
+      @Override
+      protected RasterPool initialValue() {
+        return new RasterPool();
+      }
+    };
+
+  /** Free rasters by size. */
+  private final Map<Long, Deque<BufferedImage>> free =
+    new HashMap<Long, Deque<BufferedImage>>();
+  /** Scratch arrays by slot. */
+  private final int[][] scratch = new int[SCRATCH_SLOTS][];
+  /** Pixels of the free rasters. */
+  private long pooled = 0;
+
+  /** Use the static methods. */
+  private RasterPool() {
+  }
+
+  /**
+   * Lease an RGB raster. Its contents are undefined, the caller must write
+   * every pixel.
+   * @param width the width
+   * @param height the height
+   * @return a TYPE_INT_RGB image, to be given back with release()
+   */
+  public static BufferedImage acquire(final int width, final int height) {
+    final RasterPool pool = POOLS.get();
+    final Deque<BufferedImage> images = pool.free.get(key(width, height));
+    if (images != null && !images.isEmpty()) {
+      pool.pooled -= (long) width * height;
+      return images.pop();
+    }
+    return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+  }
+
+  /**
+   * Hand back a raster which is no longer used. Images which were not made
+   * by acquire(), e.g. decoded ones or subimages, are only flushed, as are
+   * rasters beyond what the pool keeps.
+   * @param image the image, may be null
+   */
+  public static void release(final BufferedImage image) {
+    if (image == null) {
+      return;
+    }
+    final RasterPool pool = POOLS.get();
+    final long pixels = (long) image.getWidth() * image.getHeight();
+    if (image.getType() != BufferedImage.TYPE_INT_RGB
+      || image.getRaster().getParent() != null
+      || image.getRaster().getDataBuffer().getSize() != pixels) {
+      image.flush();
+      return;
+    }
+    final Long key = key(image.getWidth(), image.getHeight());
+    if (pool.free.containsKey(key) && pool.free.get(key).contains(image)) {
+      return;
+    }
+    if (pool.pooled + pixels > MAX_POOLED_PIXELS) {
+      pool.trim(MAX_POOLED_PIXELS - pixels);
+    }
+    if (pool.pooled + pixels > MAX_POOLED_PIXELS) {
+      image.flush();
+      return;
+    }
+    Deque<BufferedImage> images = pool.free.get(key);
+    if (images == null) {
+      images = new ArrayDeque<BufferedImage>(2);
+      pool.free.put(key, images);
+    }
+    images.push(image);
+    pool.pooled += pixels;
+  }
+
+  /**
+   * Get the pixel array of a raster from acquire().
+   * @param image a TYPE_INT_RGB image
+   * @return its pixels, row by row
+   */
+  public static int[] getPixels(final BufferedImage image) {
+    return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * Get a scratch array of this thread. The same slot must not be used
+   * twice at the same time. Its contents are undefined.
+   * @param slot 0 to SCRATCH_SLOTS - 1
+   * @param size the number of ints needed
+   * @return an array of at least size ints
+   */
+  public static int[] scratch(final int slot, final int size) {
+    if (size > MAX_SCRATCH) {
+      return new int[size];
+    }
+    final int[][] arrays = POOLS.get().scratch;
+    if (arrays[slot] == null || arrays[slot].length < size) {
+      arrays[slot] = new int[size];
+    }
+    return arrays[slot];
+  }
+
+  /**
+   * Drop the rasters and scratch arrays of this thread, at the end of work
+   * on a thread the gallery does not own, e.g. a servlet request thread,
+   * which would otherwise keep them and the classes of the web application.
+   */
+  public static void clear() {
+    POOLS.get().trim(0);
+    POOLS.remove();
+  }
+
+  /**
+   * Drop free rasters until at most a number of pixels is kept.
+   * @param limit the pixels to keep
+   */
+  private void trim(final long limit) {
+    final Iterator<Deque<BufferedImage>> it = free.values().iterator();
+    while (pooled > limit && it.hasNext()) {
+      final Deque<BufferedImage> images = it.next();
+      while (pooled > limit && !images.isEmpty()) {
+        final BufferedImage image = images.pop();
+        pooled -= (long) image.getWidth() * image.getHeight();
+        image.flush();
+      }
+      if (images.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @param width a width
+   * @param height a height
+   * @return the key for rasters of that size
+   */
+  private static Long key(final int width, final int height) {
+    return ((long) width << 32) | height;
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Resampler.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Separable convolution resampling, first along rows and then along
+ * columns. The filter is stretched by the reduction factor, so every source
+ * pixel contributes to the result in one pass, there are no halving steps.
+ * Weights are fixed point and computed once per output row and column.
+ * Packed int RGB and 3 byte BGR rasters, which is what the JPEG decoder
+ * makes, are read in place; other rasters are converted first.
+ *
+ * @author scott
+ */
+public final class Resampler {
+
+  /** Fractional bits of the fixed point weights. */
+  private static final int PRECISION = 22;
+  /** One half in fixed point, for rounding. */
+  private static final int HALF = 1 << (PRECISION - 1);
+
+  /** The resampling filters. */
+  public enum Filter {
+
+    /** Lanczos windowed sinc with three lobes, sharp. */
+    LANCZOS3(3.0) {
+      @Override
+      double weight(final double x) {
+        if (x == 0) {
+          return 1.0;
+        }
+        if (x <= -3.0 || x >= 3.0) {
+          return 0.0;
+        }
+        final double px = Math.PI * x;
+        return 3.0 * Math.sin(px) * Math.sin(px / 3.0) / (px * px);
+      }
+    },
+
+    /** Catmull-Rom bicubic, a = -0.5, softer than Lanczos. */
+    CATMULL_ROM(2.0) {
+      @Override
+      double weight(final double x) {
+        final double ax = Math.abs(x);
+        if (ax < 1.0) {
+          return (1.5 * ax - 2.5) * ax * ax + 1.0;
+        }
+        if (ax < 2.0) {
+          return ((-0.5 * ax + 2.5) * ax - 4.0) * ax + 2.0;
+        }
+        return 0.0;
+      }
+    };
+
+    /** Radius of the filter at scale 1. */
+    private final double support;
+
+    /**
+     * @param inSupport radius of the filter at scale 1
+     */
+    Filter(final double inSupport) {
+      support = inSupport;
+    }
+
+    /**
+     * @param x distance from the centre, in source pixels at scale 1
+     * @return the filter weight
+     */
+    abstract double weight(double x);
+  }
+
+  /** Static methods only. */
+  private Resampler() {
+  }
+
+  /**
+   * Resample an image.
+   * @param image the image
+   * @param width width of the result
+   * @param height height of the result
+   * @param filter the filter
+   * @return an RGB image leased from the RasterPool
+   */
+  public static BufferedImage resample(final BufferedImage image,
+    final int width, final int height, final Filter filter) {
+    final int inWidth = image.getWidth();
+    final int inHeight = image.getHeight();
+    final int[] rows = RasterPool.scratch(0, width * inHeight);
+    horizontal(image, rows, width, weights(inWidth, width, filter));
+    final BufferedImage result = RasterPool.acquire(width, height);
+    vertical(rows, width, RasterPool.getPixels(result), height,
+      weights(inHeight, height, filter));
+    return result;
+  }
+
+  /**
+   * Resample each row of an image to a new width.
+   * @param image the source
+   * @param rows receives width by source height packed RGB pixels
+   * @param width width of the result
+   * @param w the weights for the columns
+   */
+  private static void horizontal(final BufferedImage image, final int[] rows,
+    final int width, final Weights w) {
+    final WritableRaster raster = image.getRaster();
+    final int inWidth = image.getWidth();
+    final int inHeight = image.getHeight();
+    final int type = image.getType();
+    if ((type == BufferedImage.TYPE_INT_RGB
+      || type == BufferedImage.TYPE_INT_ARGB)
+      && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+      final SinglePixelPackedSampleModel sm =
+        (SinglePixelPackedSampleModel) raster.getSampleModel();
+      final DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+      final int stride = sm.getScanlineStride();
+      final int base = buffer.getOffset()
+        - raster.getSampleModelTranslateY() * stride
+        - raster.getSampleModelTranslateX();
+      horizontalInt(buffer.getData(), base, stride, inHeight, rows, width, w);
+    } else if (type == BufferedImage.TYPE_3BYTE_BGR
+      && raster.getSampleModel() instanceof PixelInterleavedSampleModel) {
+      final PixelInterleavedSampleModel sm =
+        (PixelInterleavedSampleModel) raster.getSampleModel();
+      final DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+      final int stride = sm.getScanlineStride();
+      final int pixel = sm.getPixelStride();
+      final int base = buffer.getOffset()
+        - raster.getSampleModelTranslateY() * stride
+        - raster.getSampleModelTranslateX() * pixel;
+      horizontalByte(buffer.getData(), base, stride, pixel,
+        sm.getBandOffsets(), inHeight, rows, width, w);
+    } else {
+      final int[] pixels =
+        image.getRGB(0, 0, inWidth, inHeight, null, 0, inWidth);
+      horizontalInt(pixels, 0, inWidth, inHeight, rows, width, w);
+    }
+  }
+
+  /**
+   * Resample rows of packed int pixels.
+   * @param in the source pixels
+   * @param base index of the first source pixel
+   * @param stride distance between source rows
+   * @param inHeight number of rows
+   * @param rows receives the resampled rows
+   * @param width width of the result
+   * @param w the weights for the columns
+   */
+  private static void horizontalInt(final int[] in, final int base,
+    final int stride, final int inHeight, final int[] rows, final int width,
+    final Weights w) {
+    final int[] weights = w.weights;
+    for (int y = 0; y < inHeight; y++) {
+      final int row = base + y * stride;
+      final int outRow = y * width;
+      for (int x = 0; x < width; x++) {
+        final int start = row + w.start[x];
+        final int count = w.count[x];
+        final int k = x * w.taps;
+        int r = HALF;
+        int g = HALF;
+        int b = HALF;
+        for (int j = 0; j < count; j++) {
+          final int p = in[start + j];
+          final int c = weights[k + j];
+          r += (p >> 16 & 0xff) * c;
+          g += (p >> 8 & 0xff) * c;
+          b += (p & 0xff) * c;
+        }
+        rows[outRow + x] = pack(r, g, b);
+      }
+    }
+  }
+
+  /**
+   * Resample rows of interleaved byte pixels.
+   * @param in the source samples
+   * @param base index of the first source pixel
+   * @param stride distance between source rows
+   * @param pixel distance between source pixels
+   * @param bands offsets of the red, green and blue samples in a pixel
+   * @param inHeight number of rows
+   * @param rows receives the resampled rows
+   * @param width width of the result
+   * @param w the weights for the columns
+   */
+  private static void horizontalByte(final byte[] in, final int base,
+    final int stride, final int pixel, final int[] bands, final int inHeight,
+    final int[] rows, final int width, final Weights w) {
+    final int[] weights = w.weights;
+    final int red = bands[0];
+    final int green = bands[1];
+    final int blue = bands[2];
+    for (int y = 0; y < inHeight; y++) {
+      final int row = base + y * stride;
+      final int outRow = y * width;
+      for (int x = 0; x < width; x++) {
+        int i = row + w.start[x] * pixel;
+        final int count = w.count[x];
+        final int k = x * w.taps;
+        int r = HALF;
+        int g = HALF;
+        int b = HALF;
+        for (int j = 0; j < count; j++) {
+          final int c = weights[k + j];
+          r += (in[i + red] & 0xff) * c;
+          g += (in[i + green] & 0xff) * c;
+          b += (in[i + blue] & 0xff) * c;
+          i += pixel;
+        }
+        rows[outRow + x] = pack(r, g, b);
+      }
+    }
+  }
+
+  /**
+   * Resample the columns of the row pass to a new height. Whole rows are
+   * accumulated at a time so the source is read in memory order.
+   * @param rows the row pass output
+   * @param width width of the rows
+   * @param out receives the result
+   * @param height height of the result
+   * @param w the weights for the rows
+   */
+  private static void vertical(final int[] rows, final int width,
+    final int[] out, final int height, final Weights w) {
+    final int[] weights = w.weights;
+    final int[] r = RasterPool.scratch(1, width);
+    final int[] g = RasterPool.scratch(2, width);
+    final int[] b = RasterPool.scratch(3, width);
+    for (int y = 0; y < height; y++) {
+      Arrays.fill(r, 0, width, HALF);
+      Arrays.fill(g, 0, width, HALF);
+      Arrays.fill(b, 0, width, HALF);
+      final int start = w.start[y];
+      final int count = w.count[y];
+      final int k = y * w.taps;
+      for (int j = 0; j < count; j++) {
+        final int c = weights[k + j];
+        final int row = (start + j) * width;
+        for (int x = 0; x < width; x++) {
+          final int p = rows[row + x];
+          r[x] += (p >> 16 & 0xff) * c;
+          g[x] += (p >> 8 & 0xff) * c;
+          b[x] += (p & 0xff) * c;
+        }
+      }
+      final int outRow = y * width;
+      for (int x = 0; x < width; x++) {
+        out[outRow + x] = pack(r[x], g[x], b[x]);
+      }
+    }
+  }
+
+  /**
+   * Pack fixed point channel sums into an RGB pixel, clamping the over and
+   * undershoot of the negative lobes.
+   * @param r red sum
+   * @param g green sum
+   * @param b blue sum
+   * @return the pixel
+   */
+  private static int pack(final int r, final int g, final int b) {
+    return clamp(r >> PRECISION) << 16 | clamp(g >> PRECISION) << 8
+      | clamp(b >> PRECISION);
+  }
+
+  /**
+   * @param v a channel value
+   * @return v limited to 0..255
+   */
+  private static int clamp(final int v) {
+    return v < 0 ? 0 : v > 0xff ? 0xff : v;
+  }
+
+  /**
+   * Compute the weights for resampling one dimension.
+   * @param inSize source size
+   * @param outSize result size
+   * @param filter the filter
+   * @return the weights
+   */
+  private static Weights weights(final int inSize, final int outSize,
+    final Filter filter) {
+    final double scale = (double) inSize / outSize;
+    // stretch the filter when reducing so it covers every source pixel
+    final double filterScale = Math.max(1.0, scale);
+    final double support = filter.support * filterScale;
+    final int taps = (int) Math.ceil(support) * 2 + 1;
+    final Weights w = new Weights(outSize, taps);
+    final double[] exact = new double[taps];
+    for (int i = 0; i < outSize; i++) {
+      final double center = (i + 0.5) * scale;
+      final int min = Math.max(0, (int) (center - support + 0.5));
+      final int max = Math.min(inSize, (int) (center + support + 0.5));
+      final int count = Math.min(taps, max - min);
+      double sum = 0;
+      for (int j = 0; j < count; j++) {
+        exact[j] = filter.weight((j + min - center + 0.5) / filterScale);
+        sum += exact[j];
+      }
+      w.start[i] = min;
+      w.count[i] = count;
+      for (int j = 0; j < count; j++) {
+        w.weights[i * taps + j] = (int) Math.round(
+          (sum == 0 ? 0 : exact[j] / sum) * (1 << PRECISION));
+      }
+    }
+    return w;
+  }
+
+  /** Fixed point weights for each position along one dimension. */
+  private static final class Weights {
+
+    /** Maximum number of source pixels for one result pixel. */
+    private final int taps;
+    /** First source pixel of each result pixel. */
+    private final int[] start;
+    /** Number of source pixels of each result pixel. */
+    private final int[] count;
+    /** The weights, taps per result pixel. */
+    private final int[] weights;
+
+    /**
+     * @param size number of result pixels
+     * @param inTaps maximum number of source pixels for one result pixel
+     */
+    Weights(final int size, final int inTaps) {
+      taps = inTaps;
+      start = new int[size];
+      count = new int[size];
+      weights = new int[size * inTaps];
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * ScalingMethod.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * The built in scalers. The progressive methods halve the image with
+ * Graphics2D until it is within a factor of two of the target and then make
+ * the final step, which keeps the quality of an area average while running
+ * on the Java2D raster loops instead of the AWT ImageProducer pipeline. The
+ * convolution methods use the Resampler kernels.
+ *
+ * @author scott
+ */
+public enum ScalingMethod implements ImageScaler {
+
+  /**
+   * Image.getScaledInstance() with SCALE_SMOOTH. Slow, kept for
+   * compatibility with derivatives made by earlier versions.
+   */
+  AREA_AVERAGING {
+    @Override
+    public BufferedImage scale(final BufferedImage bImage, final int width,
+      final int height) {
+      final Image scaledImage =
+        bImage.getScaledInstance(width, height, Image.SCALE_SMOOTH);
+      final BufferedImage bsImage = RasterPool.acquire(width, height);
+      final Graphics2D g2d = bsImage.createGraphics();
+      try {
+        g2d.setColor(Color.BLACK);
+        g2d.fillRect(0, 0, width, height);
+        g2d.drawImage(scaledImage, 0, 0, null);
+      } finally {
+        g2d.dispose();
+        scaledImage.flush();
+      }
+      return bsImage;
+    }
+  },
+
+  /** Progressive bilinear steps, fast with good quality. */
+  BILINEAR {
+    @Override
+    public BufferedImage scale(final BufferedImage bImage, final int width,
+      final int height) {
+      return progressive(bImage, width, height,
+        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    }
+  },
+
+  /** Progressive bicubic steps, sharper than bilinear. */
+  BICUBIC {
+    @Override
+    public BufferedImage scale(final BufferedImage bImage, final int width,
+      final int height) {
+      return progressive(bImage, width, height,
+        RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    }
+  },
+
+  /** Lanczos-3 convolution in a single pass, the sharpest. */
+  LANCZOS3 {
+    @Override
+    public BufferedImage scale(final BufferedImage bImage, final int width,
+      final int height) {
+      return Resampler.resample(bImage, width, height,
+        Resampler.Filter.LANCZOS3);
+    }
+  },
+
+  /** Catmull-Rom bicubic convolution in a single pass. */
+  CATMULL_ROM {
+    @Override
+    public BufferedImage scale(final BufferedImage bImage, final int width,
+      final int height) {
+      return Resampler.resample(bImage, width, height,
+        Resampler.Filter.CATMULL_ROM);
+    }
+  };
+
+  /**
+   * Scale in steps of at most a factor of two.
+   * @param bImage the image to be scaled
+   * @param width scaled width
+   * @param height scaled height
+   * @param interpolation a RenderingHints interpolation value for the final
+   * step
+   * @return scaled BufferedImage
+   */
+  private static BufferedImage progressive(final BufferedImage bImage,
+    final int width, final int height, final Object interpolation) {
+    BufferedImage current = bImage;
+    int w = bImage.getWidth();
+    int h = bImage.getHeight();
+    do {
+      // never below the target, and straight to it when enlarging
+      w = w > width ? Math.max(w / 2, width) : width;
+      h = h > height ? Math.max(h / 2, height) : height;
+      final BufferedImage step = RasterPool.acquire(w, h);
+      final Graphics2D g2d = step.createGraphics();
+      try {
+        if (current.getColorModel().hasAlpha()) {
+          // a pooled raster holds an old image, transparency must not
+          // let it show through
+          g2d.setColor(Color.BLACK);
+          g2d.fillRect(0, 0, w, h);
+        }
+        // a bilinear halving already averages every source pixel, the
+        // requested interpolation only matters for the last step
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+          w == width && h == height ? interpolation
+            : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING,
+          RenderingHints.VALUE_RENDER_QUALITY);
+        g2d.drawImage(current, 0, 0, w, h, null);
+      } finally {
+        g2d.dispose();
+      }
+      if (current != bImage) {
+        RasterPool.release(current);
+      }
+      current = step;
+    } while (w != width || h != height);
+    return current;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * TextFileCache.java
+ *
+ * Copyright: Scott Douglass <scott@swdouglass.com>.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * on the World Wide Web for more details:
+ * http://www.fsf.org/licensing/licenses/gpl.txt
+ */
+package com.spacepirates.gallery;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of small text files such as gallery descriptions. A
+ * cached file is checked with a single stat and only read again when its
+ * modification time or size changed. The least recently used files are
+ * dropped once the cache holds more than its maximum number of files.
+ *
+ * @author scott
+ */
+public final class TextFileCache {
+
+  /** Default maximum number of files. */
+  private static final int D_MAX_ENTRIES = 256;
+  /** The single instance. */
+  private static final TextFileCache INSTANCE = new TextFileCache();
+
+  /** Files in least recently used order, guarded by this. */
+  private final Map<String, CachedText> entries =
+    new LinkedHashMap<String, CachedText>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+        final Map.Entry<String, CachedText> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  /** Maximum number of files. */
+  private int maxEntries = D_MAX_ENTRIES;
+
+  /** Use getInstance(). */
+  private TextFileCache() {
+  }
+
+  /**
+   * Get the cache.
+   * @return the process wide cache
+   */
+  public static TextFileCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Get the text of a file, reading it only if it changed since it was
+   * cached.
+   * @param inFile the file
+   * @return the text, or null if the file does not exist or can't be read
+   */
+  public String get(final File inFile) {
+    final BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(inFile.toPath(),
+        BasicFileAttributes.class);
+    } catch (IOException e) {
+      remove(inFile.getPath());
+      return null;
+    }
+    final long lastModified = attributes.lastModifiedTime().toMillis();
+    final long length = attributes.size();
+    synchronized (this) {
+      final CachedText entry = entries.get(inFile.getPath());
+      if (entry != null && entry.lastModified == lastModified
+        && entry.length == length) {
+        return entry.text;
+      }
+    }
+    // read outside the lock, a racing reader just reads it too
+    final String text = read(inFile);
+    if (text != null) {
+      synchronized (this) {
+        entries.put(inFile.getPath(),
+          new CachedText(lastModified, length, text));
+      }
+    }
+    return text;
+  }
+
+  /**
+   * @param path path of a file to forget
+   */
+  private synchronized void remove(final String path) {
+    entries.remove(path);
+  }
+
+  /** Drop all files. */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Read in text from a file.
+   * @param inFile the source file
+   * @return a String with the text, or null if it can't be read
+   */
+  private static String read(final File inFile) {
+    final StringBuilder contents = new StringBuilder();
+    try {
+      //this implementation reads one line at a time
+      final BufferedReader input = new BufferedReader(new FileReader(inFile));
+      try {
+        String line = null; //not declared within while loop
+        while ((line = input.readLine()) != null) {
+          contents.append(line);
+          contents.append(System.getProperty("line.separator"));
+        }
+      } finally {
+        input.close();
+      }
+    } catch (IOException ex) {
+      return null;
+    }
+    return contents.toString();
+  }
+
+  /**
+   * @return the maxEntries
+   */
+  public synchronized int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @param inMaxEntries the maxEntries to set
+   */
+  public synchronized void setMaxEntries(final int inMaxEntries) {
+    this.maxEntries = inMaxEntries;
+  }
+
+  /**
+   * The text of a file and the attributes it was read with.
+   */
+  private static final class CachedText {
+    /** Modification time of the file. */
+    private final long lastModified;
+    /** Size of the file. */
+    private final long length;
+    /** The text. */
+    private final String text;
+
+    /**
+     * Create a cached text.
+     * @param inLastModified modification time of the file
+     * @param inLength size of the file
+     * @param inText the text
+     */
+    CachedText(final long inLastModified, final long inLength,
+      final String inText) {
+      lastModified = inLastModified;
+      length = inLength;
+      text = inText;
+    }
+  }
+}
@@ -25,12 +25,18 @@ import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.JspWriter;
 import java.io.IOException;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.jsp.tagext.TagSupport;
 
 
 /**
  * Generates a user interface for a LazyGallery. This class is no longer
  * actively maintained.
+ * <p>
+ * With conditional="true" the page is answered with 304 Not Modified while
+ * the gallery and the tag attributes are unchanged. The validators only
+ * cover the gallery, so this is for pages whose other content does not
+ * change.
  *
  * @author scott
  */
@@ -45,6 +51,20 @@ public class LazyGalleryTag extends TagSupport {
   private int thumbsPerRow = 5;
   private boolean debug = false;
   private String imageRootDir = "/";
+  /** Caption under the gallery, null for the gallery description. */
+  private String caption;
+  /** Name of the ScalingMethod for all derivatives, null for defaults. */
+  private String scaling;
+  /** Encoder quality for all derivatives, null for the default. */
+  private Float quality;
+  /** Flag to make thumbnails from the thumbnail embedded in EXIF data. */
+  private boolean exifThumbnails = false;
+  /** Flag to compare contents of images whose size or time changed. */
+  private boolean contentHash = false;
+  /** Flag to answer conditional requests for the whole page. */
+  private boolean conditional = false;
+  /** Set when the request was answered with 304 Not Modified. */
+  private boolean notModified = false;
 
   @Override
   public final int doStartTag() throws JspException {
@@ -58,9 +78,34 @@ public class LazyGalleryTag extends TagSupport {
       gallery.setImageDir(request.getParameter(P_IMAGES));
     }
 
+    gallery.setCaption(caption);
+    gallery.setScaling(scaling);
+    gallery.setQuality(quality);
+    gallery.setExifThumbnails(exifThumbnails);
+    gallery.setContentHash(contentHash);
+
+    final HttpServletResponse response =
+      (HttpServletResponse) pageContext.getResponse();
     try {
       final JspWriter out = pageContext.getOut();
-      gallery.init(request);
+      gallery.configure(request);
+      // answer revalidation from the cached gallery, before any gallery work
+      String etag = getETag(response);
+      if (etag != null) {
+        final long lastModified = gallery.getLastModified(etag);
+        setValidators(response, etag, lastModified);
+        notModified = isNotModified(request, etag, lastModified);
+        if (notModified) {
+          out.clearBuffer();
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return SKIP_BODY;
+        }
+      }
+      gallery.load();
+      etag = getETag(response);
+      if (etag != null) {
+        setValidators(response, etag, gallery.getLastModified(etag));
+      }
       out.write(gallery.toString());
     } catch (IOException e) {
       throw new JspException(e);
@@ -68,6 +113,87 @@ public class LazyGalleryTag extends TagSupport {
     return SKIP_BODY;
   }
 
+  @Override
+  public final int doEndTag() throws JspException {
+    if (notModified) {
+      notModified = false;
+      return SKIP_PAGE;
+    }
+    return EVAL_PAGE;
+  }
+
+  /**
+   * Compute the entity tag of the page: the one of the gallery plus the tag
+   * attributes.
+   * @param response the response
+   * @return the quoted entity tag, or null if the page is not validated,
+   * because conditional is off, the response is already committed so its
+   * status can not be changed, or the gallery is not cacheable
+   */
+  private String getETag(final HttpServletResponse response) {
+    if (!conditional || response.isCommitted()) {
+      return null;
+    }
+    final String etag = gallery.getETag();
+    if (etag == null) {
+      return null;
+    }
+    final String attributes = thumbsPerRow + "\0" + debug + '\0'
+      + imageRootDir + '\0' + caption + '\0' + scaling + '\0' + quality
+      + '\0' + exifThumbnails + '\0' + contentHash;
+    return etag.substring(0, etag.length() - 1) + '-'
+      + Integer.toHexString(attributes.hashCode()) + '"';
+  }
+
+  /**
+   * Set the ETag and Last-Modified headers for the gallery.
+   * @param response the response
+   * @param etag the entity tag
+   * @param lastModified the modification time, not sent if unknown
+   */
+  private void setValidators(final HttpServletResponse response,
+    final String etag, final long lastModified) {
+    response.setHeader("ETag", etag);
+    if (lastModified > 0) {
+      response.setDateHeader("Last-Modified", lastModified);
+    }
+  }
+
+  /**
+   * Check the conditional headers of a request against the gallery.
+   * If-None-Match takes precedence over If-Modified-Since.
+   * @param request the request
+   * @param etag the entity tag of the gallery
+   * @param lastModified the modification time of the gallery
+   * @return true if the client copy is current
+   */
+  private boolean isNotModified(final HttpServletRequest request,
+    final String etag, final long lastModified) {
+    final String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          // If-None-Match uses the weak comparison
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    final long ifModifiedSince;
+    try {
+      ifModifiedSince = request.getDateHeader("If-Modified-Since");
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    // HTTP dates have a resolution of one second
+    return ifModifiedSince >= 0 && lastModified > 0
+      && lastModified / 1000 * 1000 <= ifModifiedSince;
+  }
+
   /**
    * @return the thumbsPerRow
    */
@@ -109,4 +235,96 @@ public class LazyGalleryTag extends TagSupport {
   public void setImageRootDir(String imageRootDir) {
     this.imageRootDir = imageRootDir;
   }
+
+  /**
+   * @return the caption under the gallery, null for the gallery description
+   */
+  public String getCaption() {
+    return caption;
+  }
+
+  /**
+   * @param inCaption the caption under the gallery, null for the gallery
+   * description
+   */
+  public void setCaption(final String inCaption) {
+    this.caption = inCaption;
+  }
+
+  /**
+   * @return the name of the ScalingMethod for all derivatives, null for the
+   * gallery defaults
+   */
+  public String getScaling() {
+    return scaling;
+  }
+
+  /**
+   * @param inScaling the name of the ScalingMethod for all derivatives,
+   * e.g. lanczos3, null for the gallery defaults
+   */
+  public void setScaling(final String inScaling) {
+    this.scaling = inScaling;
+  }
+
+  /**
+   * @return the encoder quality for all derivatives, null for the default
+   */
+  public Float getQuality() {
+    return quality;
+  }
+
+  /**
+   * @param inQuality the encoder quality from 0 to 1 for all derivatives,
+   * null for the default
+   */
+  public void setQuality(final Float inQuality) {
+    this.quality = inQuality;
+  }
+
+  /**
+   * @return true if thumbnails are made from the thumbnail embedded in the
+   * EXIF data
+   */
+  public boolean isExifThumbnails() {
+    return exifThumbnails;
+  }
+
+  /**
+   * @param inExifThumbnails true to make thumbnails from the thumbnail
+   * embedded in the EXIF data when it is large enough
+   */
+  public void setExifThumbnails(final boolean inExifThumbnails) {
+    this.exifThumbnails = inExifThumbnails;
+  }
+
+  /**
+   * @return true if the contents of changed images are compared
+   */
+  public boolean isContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * @param inContentHash true to compare the contents of images whose size
+   * or modification time changed
+   */
+  public void setContentHash(final boolean inContentHash) {
+    this.contentHash = inContentHash;
+  }
+
+  /**
+   * @return true if conditional requests for the page are answered
+   */
+  public boolean isConditional() {
+    return conditional;
+  }
+
+  /**
+   * @param inConditional true to answer conditional requests for the page
+   * with 304 Not Modified, only for pages with no other changing content
+   */
+  public void setConditional(final boolean inConditional) {
+    this.conditional = inConditional;
+  }
 }